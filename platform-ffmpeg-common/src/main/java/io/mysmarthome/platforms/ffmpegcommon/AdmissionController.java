@@ -0,0 +1,165 @@
+package io.mysmarthome.platforms.ffmpegcommon;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Hands out the stream slots. When they are all taken, a request waits in a queue ordered by priority, then by
+ * arrival, until a slot is released or its timeout expires. A waiting request may also ask the {@link Preemptor}
+ * to stop a stream of lower priority, whose slot then goes to the first one in the queue.
+ */
+@Slf4j
+public class AdmissionController {
+
+    /**
+     * Stops one running stream with a priority lower than the given one, if there is one worth stopping.
+     */
+    @FunctionalInterface
+    public interface Preemptor {
+        boolean preempt(int priority);
+    }
+
+    private final int maxSlots;
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<>(
+            Comparator.comparingInt((Waiter w) -> w.priority).reversed().thenComparingLong(w -> w.order));
+    private int usedSlots = 0;
+    private long arrivals = 0;
+    private volatile Preemptor preemptor = p -> false;
+    private volatile BooleanSupplier capacity = () -> true;
+
+    public AdmissionController(int maxSlots) {
+        this.maxSlots = maxSlots;
+    }
+
+    public void setPreemptor(Preemptor preemptor) {
+        this.preemptor = preemptor;
+    }
+
+    /**
+     * Extra condition for a free slot to be taken, for instance that the host has CPU left. It is ignored while
+     * no slot is used, so there can always be one stream.
+     */
+    public void setCapacityCheck(BooleanSupplier capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Takes a slot if one is free and nobody is waiting for it.
+     */
+    public synchronized boolean tryAcquire() {
+        if (isFree() && waiters.isEmpty()) {
+            usedSlots++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Takes a slot, waiting for one when there is none free.
+     *
+     * @return completes once the slot is taken, or fails with a TimeoutException
+     */
+    public CompletableFuture<Void> acquire(int priority, Duration timeout) {
+        Waiter waiter;
+        synchronized (this) {
+            if (isFree() && waiters.isEmpty()) {
+                usedSlots++;
+                return CompletableFuture.completedFuture(null);
+            }
+            waiter = new Waiter(priority, arrivals++);
+            waiters.add(waiter);
+        }
+
+        waiter.slot
+                .orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS)
+                .whenComplete((r, e) -> {
+                    if (e != null) {
+                        remove(waiter);
+                    }
+                });
+
+        // the released slot goes to the head of the queue, which is this request unless a better one came
+        if (preemptor.preempt(priority)) {
+            log.info("Stream preempted for a request with priority {}", priority);
+        }
+        return waiter.slot;
+    }
+
+    /**
+     * Gives the slot to the first one waiting, or frees it.
+     */
+    public void release() {
+        while (true) {
+            Waiter next;
+            synchronized (this) {
+                next = waiters.poll();
+                if (next == null) {
+                    usedSlots--;
+                    return;
+                }
+            }
+            // completed outside the lock, whatever depends on it runs right away
+            if (next.slot.complete(null)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gives the free slots to the ones waiting, to be called when the capacity check may have changed.
+     */
+    public void recheck() {
+        while (true) {
+            Waiter next;
+            synchronized (this) {
+                if (!isFree()) {
+                    return;
+                }
+                next = waiters.poll();
+                if (next == null) {
+                    return;
+                }
+                usedSlots++;
+            }
+            if (!next.slot.complete(null)) {
+                // timed out meanwhile
+                synchronized (this) {
+                    usedSlots--;
+                }
+            }
+        }
+    }
+
+    public synchronized boolean hasFreeSlots() {
+        return isFree();
+    }
+
+    private boolean isFree() {
+        return usedSlots == 0 || usedSlots < maxSlots && capacity.getAsBoolean();
+    }
+
+    public synchronized int getWaiting() {
+        return waiters.size();
+    }
+
+    private synchronized void remove(Waiter waiter) {
+        waiters.remove(waiter);
+    }
+
+    private static class Waiter {
+        private final int priority;
+        private final long order;
+        private final CompletableFuture<Void> slot = new CompletableFuture<>();
+
+        Waiter(int priority, long order) {
+            this.priority = priority;
+            this.order = order;
+        }
+    }
+}
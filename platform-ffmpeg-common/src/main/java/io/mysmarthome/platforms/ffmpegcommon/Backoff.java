@@ -0,0 +1,35 @@
+package io.mysmarthome.platforms.ffmpegcommon;
+
+import java.time.Duration;
+
+/**
+ * Exponential delay between restarts: starts at the initial delay, doubles on every attempt and never goes over
+ * the maximum.
+ */
+public class Backoff {
+
+    private final Duration initial;
+    private final Duration max;
+    private Duration current;
+
+    public Backoff(Duration initial, Duration max) {
+        this.initial = initial;
+        this.max = max;
+        this.current = initial;
+    }
+
+    public synchronized Duration next() {
+        Duration delay = current;
+        Duration doubled = current.multipliedBy(2);
+        current = doubled.compareTo(max) > 0 ? max : doubled;
+        return delay;
+    }
+
+    public synchronized void reset() {
+        current = initial;
+    }
+
+    public Duration getMax() {
+        return max;
+    }
+}
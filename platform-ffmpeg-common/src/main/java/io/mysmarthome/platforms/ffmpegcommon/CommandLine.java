@@ -0,0 +1,58 @@
+package io.mysmarthome.platforms.ffmpegcommon;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a command template into the argument list given to the process, so the command can be executed
+ * without a shell. Arguments are separated by whitespace, single and double quotes group words and a
+ * backslash escapes the next character, as a shell would do.
+ */
+public final class CommandLine {
+
+    private CommandLine() {
+    }
+
+    public static List<String> split(String command) {
+        List<String> args = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean inArg = false;
+        char quote = 0;
+
+        for (int i = 0; i < command.length(); i++) {
+            char c = command.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                } else if (c == '\\' && quote == '"' && i + 1 < command.length()) {
+                    current.append(command.charAt(++i));
+                } else {
+                    current.append(c);
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+                inArg = true;
+            } else if (c == '\\' && i + 1 < command.length()) {
+                current.append(command.charAt(++i));
+                inArg = true;
+            } else if (Character.isWhitespace(c)) {
+                if (inArg) {
+                    args.add(current.toString());
+                    current.setLength(0);
+                    inArg = false;
+                }
+            } else {
+                current.append(c);
+                inArg = true;
+            }
+        }
+
+        if (quote != 0) {
+            throw new IllegalArgumentException("Unterminated quote in command: " + command);
+        }
+        if (inArg) {
+            args.add(current.toString());
+        }
+        return args;
+    }
+}
@@ -0,0 +1,188 @@
+package io.mysmarthome.platforms.ffmpegcommon;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Admits new streams while the host has CPU left. Every interval it reads the CPU time of each stream process
+ * tree from /proc/&lt;pid&gt;/stat and the load from /proc/loadavg. A new stream is admitted when the current
+ * usage plus the average cost of one stream stays within the budget, a percentage of the whole host. The slot
+ * limit of the {@link AdmissionController} still applies on top of it.
+ */
+@Slf4j
+public class CpuLimiter {
+
+    // USER_HZ, the unit of the times in /proc/<pid>/stat, is 100 on every Linux build that matters
+    private static final double CLOCK_TICKS = 100;
+    private static final Path LOADAVG = Paths.get("/proc/loadavg");
+
+    private final double budget;
+    private final double initialStreamCost;
+    private final Duration interval;
+    private final Supplier<Map<String, ProcessHandle>> streams;
+    private final AdmissionController admission;
+    private final int cores = Runtime.getRuntime().availableProcessors();
+    private final ScheduledExecutorService sampler =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("ffmpeg-cpu-sampler"));
+
+    private Map<String, Sample> samples = new HashMap<>();
+    private volatile Map<String, Double> costs = Map.of();
+    private volatile double usage = 0;
+
+    /**
+     * @param budget            percentage of the host, all cores together, the streams may use
+     * @param initialStreamCost what a stream is assumed to cost, in percentage of the host, until one was measured
+     * @param streams           process of each running stream, by device id
+     */
+    public CpuLimiter(double budget, double initialStreamCost, Duration interval,
+                      Supplier<Map<String, ProcessHandle>> streams, AdmissionController admission) {
+        this.budget = budget;
+        this.initialStreamCost = initialStreamCost;
+        this.interval = interval;
+        this.streams = streams;
+        this.admission = admission;
+    }
+
+    public void start() {
+        if (!Files.isReadable(LOADAVG)) {
+            log.warn("No /proc file system, the CPU budget is ignored");
+            return;
+        }
+        admission.setCapacityCheck(this::hasHeadroom);
+        sampler.scheduleWithFixedDelay(this::sample, 0, interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        sampler.shutdownNow();
+    }
+
+    /**
+     * @return CPU used by each stream during the last interval, in percent of the host
+     */
+    public Map<String, Double> getStreamCosts() {
+        return costs;
+    }
+
+    /**
+     * @return what a new stream is expected to cost, the average of the running ones, or the initial cost while
+     * none was measured, in percent of the host
+     */
+    public double getEstimatedStreamCost() {
+        return estimate(costs);
+    }
+
+    public boolean hasHeadroom() {
+        Map<String, Double> measured = costs;
+        // streams started since the last sample are not measured yet, count them at the estimate
+        long unmeasured = streams.get().keySet().stream()
+                .filter(id -> !measured.containsKey(id))
+                .count();
+        return usage + (unmeasured + 1) * estimate(measured) <= budget;
+    }
+
+    private double estimate(Map<String, Double> measured) {
+        // nothing measured yet, typically when a dashboard opens many cameras at once, assume the worst
+        return measured.isEmpty() ? initialStreamCost : average(measured);
+    }
+
+    private void sample() {
+        try {
+            long now = System.nanoTime();
+            Map<String, Sample> current = new HashMap<>();
+            Map<String, Double> measured = new HashMap<>();
+            double streamsUsage = 0;
+
+            for (Map.Entry<String, ProcessHandle> e : streams.get().entrySet()) {
+                OptionalLong ticks = readTicks(e.getValue());
+                if (ticks.isEmpty()) {
+                    continue;
+                }
+                Sample sample = new Sample(e.getValue().pid(), ticks.getAsLong(), now);
+                current.put(e.getKey(), sample);
+
+                Sample previous = samples.get(e.getKey());
+                if (previous == null || previous.getPid() != sample.getPid()) {
+                    continue;
+                }
+                double seconds = (sample.getTicks() - previous.getTicks()) / CLOCK_TICKS;
+                double elapsed = (sample.getNanos() - previous.getNanos()) / 1e9;
+                // a child that exited takes its time with it
+                double cost = Math.max(0, 100 * seconds / elapsed / cores);
+                measured.put(e.getKey(), cost);
+                streamsUsage += cost;
+            }
+
+            samples = current;
+            costs = Collections.unmodifiableMap(measured);
+            usage = Math.max(streamsUsage, readLoad());
+            log.debug("CPU usage {}% of {}%, {} per stream", usage, budget, measured);
+
+            // a stream may have got cheaper, or stopped, let the waiting requests in
+            admission.recheck();
+        } catch (RuntimeException e) {
+            log.warn("Error sampling the CPU usage", e);
+        }
+    }
+
+    /**
+     * @return user plus system time of the process and its descendants, in clock ticks
+     */
+    private static OptionalLong readTicks(ProcessHandle process) {
+        long total = 0;
+        boolean found = false;
+        List<ProcessHandle> tree = new ArrayList<>();
+        tree.add(process);
+        process.descendants().forEach(tree::add);
+        for (ProcessHandle p : tree) {
+            try {
+                String stat = Files.readString(Paths.get("/proc", Long.toString(p.pid()), "stat"));
+                // the command name may contain spaces, the fields start after its closing parenthesis
+                String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                total += Long.parseLong(fields[11]) + Long.parseLong(fields[12]); // utime, stime
+                found = true;
+            } catch (IOException | RuntimeException e) {
+                // exited meanwhile
+            }
+        }
+        return found ? OptionalLong.of(total) : OptionalLong.empty();
+    }
+
+    /**
+     * @return load of the last minute, in percent of the host
+     */
+    private double readLoad() {
+        try {
+            String load = Files.readString(LOADAVG);
+            return 100 * Double.parseDouble(load.substring(0, load.indexOf(' '))) / cores;
+        } catch (IOException | RuntimeException e) {
+            return 0;
+        }
+    }
+
+    private static double average(Map<String, Double> values) {
+        return values.values().stream().mapToDouble(Double::doubleValue).average().orElse(0);
+    }
+
+    @Value
+    private static class Sample {
+        long pid;
+        long ticks;
+        long nanos;
+    }
+}
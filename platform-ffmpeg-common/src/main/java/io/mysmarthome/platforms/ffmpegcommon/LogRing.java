@@ -0,0 +1,57 @@
+package io.mysmarthome.platforms.ffmpegcommon;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Last lines written by a process, so the reason why ffmpeg stopped can be logged without keeping its whole
+ * output. Reading the pipe also keeps ffmpeg from blocking on it.
+ */
+@Slf4j
+public class LogRing {
+
+    private final int capacity;
+    private final Deque<String> lines;
+
+    public LogRing(int capacity) {
+        this.capacity = capacity;
+        this.lines = new ArrayDeque<>(capacity);
+    }
+
+    public synchronized void add(String line) {
+        if (lines.size() == capacity) {
+            lines.removeFirst();
+        }
+        lines.addLast(line);
+    }
+
+    public synchronized List<String> getLines() {
+        return new ArrayList<>(lines);
+    }
+
+    /**
+     * Reads the stream line by line on a new thread until it is closed.
+     */
+    public void follow(InputStream input, ThreadFactory threadFactory) {
+        threadFactory.newThread(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    add(line);
+                }
+            } catch (IOException e) {
+                log.debug("Log stream closed", e);
+            }
+        }).start();
+    }
+}
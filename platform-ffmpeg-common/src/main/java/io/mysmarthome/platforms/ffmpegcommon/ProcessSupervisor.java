@@ -0,0 +1,147 @@
+package io.mysmarthome.platforms.ffmpegcommon;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Keeps a process running: when it exits without being stopped, for instance because the camera rebooted, it is
+ * launched again after an exponential backoff, as long as the stream is still wanted. The error output of every
+ * process goes to a bounded {@link LogRing}.
+ */
+@Slf4j
+public class ProcessSupervisor {
+
+    private static final int LOG_LINES = 50;
+    private static final ThreadFactory LOG_THREADS = new NamedThreadFactory("ffmpeg-stderr");
+
+    @FunctionalInterface
+    public interface Launcher {
+        Process launch() throws IOException;
+    }
+
+    private final String name;
+    private final Launcher launcher;
+    private final BooleanSupplier wanted;
+    private final ScheduledExecutorService scheduler;
+    private final Backoff backoff;
+    private final Duration stopTimeout;
+    private final LogRing output = new LogRing(LOG_LINES);
+    private final StreamHealth health = new StreamHealth();
+    private Consumer<Process> onLaunch = p -> {
+    };
+
+    private Process process;
+    private boolean stopped = false;
+
+    /**
+     * @param name     used in the logs, usually the device id
+     * @param launcher starts a new process, its error output must be a pipe
+     * @param wanted   tells whether the stream still has users, the process is restarted only then
+     */
+    public ProcessSupervisor(String name, Launcher launcher, BooleanSupplier wanted,
+                             ScheduledExecutorService scheduler, Backoff backoff, Duration stopTimeout) {
+        this.name = name;
+        this.launcher = launcher;
+        this.wanted = wanted;
+        this.scheduler = scheduler;
+        this.backoff = backoff;
+        this.stopTimeout = stopTimeout;
+    }
+
+    /**
+     * Called with every new process, the first one included, before it is watched.
+     */
+    public void setOnLaunch(Consumer<Process> onLaunch) {
+        this.onLaunch = onLaunch;
+    }
+
+    public synchronized void start() throws IOException {
+        launch();
+    }
+
+    /**
+     * Stops the current process, it is not restarted any more.
+     *
+     * @return completes when the process is gone
+     */
+    public synchronized CompletableFuture<Void> stop() {
+        stopped = true;
+        return process == null
+                ? CompletableFuture.completedFuture(null)
+                : ProcessTree.destroy(process, stopTimeout);
+    }
+
+    public synchronized Process getProcess() {
+        return process;
+    }
+
+    public StreamHealth getHealth() {
+        return health;
+    }
+
+    /**
+     * @return last lines of the error output, which is where ffmpeg logs
+     */
+    public LogRing getOutput() {
+        return output;
+    }
+
+    private void launch() throws IOException {
+        Process launched = launcher.launch();
+        process = launched;
+        output.follow(launched.getErrorStream(), LOG_THREADS);
+        health.markUp();
+        onLaunch.accept(launched);
+        launched.onExit().thenAccept(this::onExit);
+    }
+
+    private void onExit(Process exited) {
+        long uptime = health.getUptimeSeconds();
+        synchronized (this) {
+            if (stopped || exited != process) {
+                return;
+            }
+        }
+        health.markDown();
+        log.warn("Process of {} exited with code {} after {}s, last output: {}",
+                name, exited.exitValue(), uptime, output.getLines());
+        scheduleRestart(uptime);
+    }
+
+    private void scheduleRestart(long uptime) {
+        if (!wanted.getAsBoolean()) {
+            return;
+        }
+        if (uptime >= backoff.getMax().getSeconds()) {
+            // it ran long enough, this is a new failure and not the same one again
+            backoff.reset();
+        }
+        Duration delay = backoff.next();
+        log.info("Restarting process of {} in {}", name, delay);
+        scheduler.schedule(this::restart, delay.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private void restart() {
+        synchronized (this) {
+            if (stopped || !wanted.getAsBoolean()) {
+                return;
+            }
+            health.markRestart();
+            try {
+                launch();
+                return;
+            } catch (IOException | RuntimeException e) {
+                log.error("Could not restart process of {}", name, e);
+            }
+        }
+        scheduleRestart(0);
+    }
+}
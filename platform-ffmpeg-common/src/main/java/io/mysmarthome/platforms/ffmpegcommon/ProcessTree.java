@@ -0,0 +1,45 @@
+package io.mysmarthome.platforms.ffmpegcommon;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+@Slf4j
+public final class ProcessTree {
+
+    private ProcessTree() {
+    }
+
+    /**
+     * Asks the process and all its descendants to terminate, and kills whatever is still alive once the
+     * timeout expires.
+     *
+     * @return completes when the whole tree is gone
+     */
+    public static CompletableFuture<Void> destroy(Process process, Duration timeout) {
+        List<ProcessHandle> tree = new ArrayList<>(process.descendants().collect(Collectors.toList()));
+        tree.add(0, process.toHandle());
+        tree.forEach(ProcessHandle::destroy);
+
+        CompletableFuture<?>[] exits = tree.stream()
+                .map(ProcessHandle::onExit)
+                .toArray(CompletableFuture[]::new);
+
+        return CompletableFuture.allOf(exits)
+                .orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS)
+                .exceptionally(e -> {
+                    tree.stream()
+                            .filter(ProcessHandle::isAlive)
+                            .forEach(p -> {
+                                log.warn("Process {} did not terminate within {}, killing it", p.pid(), timeout);
+                                p.destroyForcibly();
+                            });
+                    return null;
+                });
+    }
+}
@@ -0,0 +1,61 @@
+package io.mysmarthome.platforms.ffmpegcommon;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Health of a supervised stream: how many times its process was restarted, for how long the current one has been
+ * running and how long the last reconnection took, from the exit of the process to the next one being up.
+ */
+public class StreamHealth {
+
+    private static final long NONE = -1;
+
+    private final AtomicInteger restarts = new AtomicInteger();
+    private volatile long upSince = NONE;
+    private volatile long downSince = NONE;
+    private volatile long lastReconnectNanos = NONE;
+
+    public void markUp() {
+        long now = System.nanoTime();
+        long down = downSince;
+        if (down != NONE) {
+            lastReconnectNanos = now - down;
+            downSince = NONE;
+        }
+        upSince = now;
+    }
+
+    public void markDown() {
+        upSince = NONE;
+        downSince = System.nanoTime();
+    }
+
+    public void markRestart() {
+        restarts.incrementAndGet();
+    }
+
+    public boolean isUp() {
+        return upSince != NONE;
+    }
+
+    public int getRestartCount() {
+        return restarts.get();
+    }
+
+    /**
+     * @return seconds since the current process is up, 0 while it is down
+     */
+    public long getUptimeSeconds() {
+        long up = upSince;
+        return up == NONE ? 0 : TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - up);
+    }
+
+    /**
+     * @return duration of the last reconnection, -1 when it never reconnected
+     */
+    public long getLastReconnectMillis() {
+        long reconnect = lastReconnectNanos;
+        return reconnect == NONE ? NONE : TimeUnit.NANOSECONDS.toMillis(reconnect);
+    }
+}
@@ -0,0 +1,217 @@
+package io.mysmarthome.platforms.ffmpegcommon;
+
+import lombok.Value;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Keeps the active streams, one per device, with the number of users of each one. Starting, joining and
+ * stopping a stream are atomic per device: each device has its own lock, so two viewers arriving at the same
+ * time share one process, and the slots of the global limit are taken from an {@link AdmissionController}, so
+ * the limit is never exceeded.
+ *
+ * @param <T> what is kept for each running stream, usually the process handle
+ */
+public class StreamRegistry<T> {
+
+    public enum Acquisition {
+        STARTED,
+        JOINED,
+        REJECTED
+    }
+
+    @Value
+    public static class Lease<T> {
+        Acquisition acquisition;
+        /**
+         * The stream started or joined, null when rejected.
+         */
+        T handle;
+    }
+
+    private final Map<String, Stream<T>> streams = new ConcurrentHashMap<>();
+    private final AdmissionController slots;
+
+    public StreamRegistry(int maxParallelStreams) {
+        this(new AdmissionController(maxParallelStreams));
+    }
+
+    public StreamRegistry(AdmissionController slots) {
+        this.slots = slots;
+    }
+
+    public AdmissionController getAdmission() {
+        return slots;
+    }
+
+    /**
+     * Joins the stream of the device, or starts it when there is none and a slot is free. The starter runs
+     * while holding the lock of the device only.
+     */
+    public Lease<T> acquire(String id, Function<String, T> starter) {
+        return acquire(id, starter, false);
+    }
+
+    /**
+     * @param reserved a slot was already taken for this call from the admission controller, it is used to start
+     *                 the stream, or given back when the stream is joined
+     */
+    public Lease<T> acquire(String id, Function<String, T> starter, boolean reserved) {
+        while (true) {
+            Stream<T> stream = streams.computeIfAbsent(id, k -> new Stream<>());
+            synchronized (stream) {
+                if (stream.retired) {
+                    // stopped meanwhile, try again with a new one
+                    continue;
+                }
+                if (stream.handle != null) {
+                    stream.users++;
+                    if (reserved) {
+                        slots.release();
+                    }
+                    return new Lease<>(Acquisition.JOINED, stream.handle);
+                }
+                if (!reserved && !slots.tryAcquire()) {
+                    retire(id, stream);
+                    return new Lease<>(Acquisition.REJECTED, null);
+                }
+
+                try {
+                    stream.handle = starter.apply(id);
+                    stream.users = 1;
+                    return new Lease<>(Acquisition.STARTED, stream.handle);
+                } catch (Throwable e) {
+                    slots.release();
+                    retire(id, stream);
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes one user of the stream, the last one out stops it.
+     *
+     * @return true when the stream was stopped
+     */
+    public boolean release(String id, Consumer<T> stopper) {
+        Stream<T> stream = streams.get(id);
+        if (stream == null) {
+            return false;
+        }
+
+        T handle;
+        synchronized (stream) {
+            if (stream.retired || stream.handle == null || --stream.users > 0) {
+                return false;
+            }
+            handle = stream.handle;
+            retire(id, stream);
+        }
+        stop(handle, stopper);
+        return true;
+    }
+
+    /**
+     * Stops the stream whatever the number of users, if it is still the one given.
+     *
+     * @return true when the stream was stopped
+     */
+    public boolean remove(String id, T handle, Consumer<T> stopper) {
+        Stream<T> stream = streams.get(id);
+        if (stream == null) {
+            return false;
+        }
+
+        synchronized (stream) {
+            if (stream.retired || stream.handle != handle) {
+                return false;
+            }
+            retire(id, stream);
+        }
+        stop(handle, stopper);
+        return true;
+    }
+
+    public void removeAll(Consumer<T> stopper) {
+        for (Map.Entry<String, Stream<T>> e : streams.entrySet()) {
+            T handle = e.getValue().getHandle();
+            if (handle != null) {
+                remove(e.getKey(), handle, stopper);
+            }
+        }
+    }
+
+    public boolean isActive(String id) {
+        return get(id).isPresent();
+    }
+
+    public Optional<T> get(String id) {
+        return Optional.ofNullable(find(id));
+    }
+
+    /**
+     * Same as {@link #get(String)} without allocating, for the paths called on every request.
+     *
+     * @return the handle of the running stream, or null
+     */
+    public T find(String id) {
+        Stream<T> stream = streams.get(id);
+        return stream == null ? null : stream.getHandle();
+    }
+
+    public List<T> getAll() {
+        List<T> handles = new ArrayList<>();
+        for (Stream<T> stream : streams.values()) {
+            T handle = stream.getHandle();
+            if (handle != null) {
+                handles.add(handle);
+            }
+        }
+        return handles;
+    }
+
+    public int getUsers(String id) {
+        Stream<T> stream = streams.get(id);
+        if (stream == null) {
+            return 0;
+        }
+        synchronized (stream) {
+            return stream.retired ? 0 : stream.users;
+        }
+    }
+
+    public boolean hasFreeSlots() {
+        return slots.hasFreeSlots();
+    }
+
+    private void retire(String id, Stream<T> stream) {
+        stream.retired = true;
+        streams.remove(id, stream);
+    }
+
+    private void stop(T handle, Consumer<T> stopper) {
+        try {
+            stopper.accept(handle);
+        } finally {
+            slots.release();
+        }
+    }
+
+    private static class Stream<T> {
+        // written under the lock of the stream, read without it
+        private volatile T handle;
+        private int users = 0;
+        private volatile boolean retired = false;
+
+        T getHandle() {
+            return retired ? null : handle;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package io.mysmarthome.platforms.ffmpegcommon;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AdmissionControllerTest {
+
+    private static final Duration LONG = Duration.ofSeconds(10);
+
+    @Test
+    void takesFreeSlotsRightAway() {
+        AdmissionController admission = new AdmissionController(2);
+
+        assertTrue(admission.tryAcquire());
+        assertTrue(admission.acquire(0, LONG).isDone());
+        assertFalse(admission.tryAcquire());
+        assertFalse(admission.hasFreeSlots());
+    }
+
+    @Test
+    void releasedSlotGoesToTheHighestPriorityThenTheOldest() {
+        AdmissionController admission = new AdmissionController(1);
+        admission.tryAcquire();
+
+        CompletableFuture<Void> low = admission.acquire(0, LONG);
+        CompletableFuture<Void> firstHigh = admission.acquire(5, LONG);
+        CompletableFuture<Void> secondHigh = admission.acquire(5, LONG);
+        assertEquals(3, admission.getWaiting());
+
+        admission.release();
+        assertTrue(firstHigh.isDone());
+        assertFalse(secondHigh.isDone());
+
+        admission.release();
+        assertTrue(secondHigh.isDone());
+        assertFalse(low.isDone());
+
+        admission.release();
+        assertTrue(low.isDone());
+        assertEquals(0, admission.getWaiting());
+    }
+
+    @Test
+    void tryAcquireDoesNotJumpTheQueue() {
+        AdmissionController admission = new AdmissionController(1);
+        admission.tryAcquire();
+        CompletableFuture<Void> waiting = admission.acquire(0, LONG);
+
+        admission.release();
+
+        assertTrue(waiting.isDone());
+        assertFalse(admission.tryAcquire());
+    }
+
+    @Test
+    void waitFailsOnTimeoutAndTheSlotIsNotGivenToIt() {
+        AdmissionController admission = new AdmissionController(1);
+        admission.tryAcquire();
+
+        CompletableFuture<Void> waiting = admission.acquire(0, Duration.ofMillis(50));
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> waiting.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof TimeoutException);
+        // the released slot skips the request that timed out
+        admission.release();
+        assertTrue(admission.tryAcquire());
+    }
+
+    @Test
+    void preemptedSlotGoesToTheRequestThatAskedForIt() {
+        AdmissionController admission = new AdmissionController(1);
+        admission.tryAcquire();
+        AtomicInteger asked = new AtomicInteger(-1);
+        admission.setPreemptor(priority -> {
+            asked.set(priority);
+            admission.release();
+            return true;
+        });
+
+        CompletableFuture<Void> waiting = admission.acquire(7, LONG);
+
+        assertEquals(7, asked.get());
+        assertTrue(waiting.isDone());
+        assertFalse(admission.hasFreeSlots());
+    }
+
+    @Test
+    void capacityCheckHoldsSlotsUntilRechecked() {
+        AdmissionController admission = new AdmissionController(3);
+        AtomicBoolean cpuLeft = new AtomicBoolean(false);
+        admission.setCapacityCheck(cpuLeft::get);
+
+        // the first stream is always let in
+        assertTrue(admission.tryAcquire());
+        CompletableFuture<Void> waiting = admission.acquire(0, LONG);
+        assertFalse(waiting.isDone());
+
+        cpuLeft.set(true);
+        admission.recheck();
+
+        assertTrue(waiting.isDone());
+        assertTrue(admission.hasFreeSlots());
+    }
+}
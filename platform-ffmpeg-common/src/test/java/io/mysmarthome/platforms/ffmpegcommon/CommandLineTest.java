@@ -0,0 +1,50 @@
+package io.mysmarthome.platforms.ffmpegcommon;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CommandLineTest {
+
+    @Test
+    void splitsOnWhitespace() {
+        assertEquals(List.of("ffmpeg", "-i", "rtsp://cam/stream", "-f", "hls", "out.m3u8"),
+                CommandLine.split("  ffmpeg -i\trtsp://cam/stream   -f hls\nout.m3u8 "));
+    }
+
+    @Test
+    void quotesGroupWords() {
+        assertEquals(List.of("-metadata", "title=living room", "it's"),
+                CommandLine.split("-metadata 'title=living room' \"it's\""));
+    }
+
+    @Test
+    void quotesInsideAnArgumentJoinIt() {
+        assertEquals(List.of("-vf", "scale=640:-1,fps=5"),
+                CommandLine.split("-vf scale=\"640:-1\",'fps=5'"));
+    }
+
+    @Test
+    void emptyQuotesGiveAnEmptyArgument() {
+        assertEquals(List.of("-user_agent", ""), CommandLine.split("-user_agent ''"));
+    }
+
+    @Test
+    void backslashEscapesOutsideAndInsideDoubleQuotes() {
+        assertEquals(List.of("a b", "say \"hi\"", "c:\\\\d"),
+                CommandLine.split("a\\ b \"say \\\"hi\\\"\" 'c:\\\\d'"));
+    }
+
+    @Test
+    void blankCommandHasNoArguments() {
+        assertEquals(List.of(), CommandLine.split("   "));
+    }
+
+    @Test
+    void unterminatedQuoteFails() {
+        assertThrows(IllegalArgumentException.class, () -> CommandLine.split("ffmpeg -i 'rtsp://cam"));
+    }
+}
@@ -0,0 +1,98 @@
+package io.mysmarthome.platforms.ffmpegcommon;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Start latency of a command run directly and through a login shell, and the processes left behind once stopped.
+ */
+@Tag("load")
+class ProcessTreeLoadTest {
+
+    private static final int STARTS = 50;
+    private static final int STOPS = 20;
+    private static final int CHILDREN = 2;
+    private static final Duration STOP_TIMEOUT = Duration.ofSeconds(5);
+
+    @Test
+    void startLatency() throws Exception {
+        // the first starts warm up the jvm and the file cache
+        measureStart(List.of("echo", "ready"), 5);
+        measureStart(List.of("/bin/bash", "-l", "-c", "echo ready"), 5);
+
+        double direct = measureStart(List.of("echo", "ready"), STARTS);
+        double shell = measureStart(List.of("/bin/bash", "-l", "-c", "echo ready"), STARTS);
+
+        System.out.printf("start to first output over %d starts: direct %.2f ms, bash -l -c %.2f ms%n",
+                STARTS, direct, shell);
+        assertTrue(direct < shell);
+    }
+
+    @Test
+    void noProcessLeftAfterStop() throws Exception {
+        List<ProcessHandle> leftByDestroy = stopAll(process -> process.destroy());
+        List<ProcessHandle> leftByTree = stopAll(process -> ProcessTree.destroy(process, STOP_TIMEOUT).join());
+
+        System.out.printf("processes left after %d stops of a command with %d children: Process.destroy %d, "
+                + "ProcessTree.destroy %d%n", STOPS, CHILDREN, leftByDestroy.size(), leftByTree.size());
+        leftByDestroy.forEach(ProcessHandle::destroyForcibly);
+        assertEquals(0, leftByTree.size());
+    }
+
+    /**
+     * @return average milliseconds from the start of the process to its first byte of output
+     */
+    private static double measureStart(List<String> command, int starts) throws IOException, InterruptedException {
+        long total = 0;
+        for (int i = 0; i < starts; i++) {
+            long start = System.nanoTime();
+            Process process = new ProcessBuilder(command).start();
+            try (InputStream out = process.getInputStream()) {
+                assertTrue(out.read() != -1);
+            }
+            total += System.nanoTime() - start;
+            process.waitFor();
+        }
+        return total / 1e6 / starts;
+    }
+
+    /**
+     * Starts a shell with a few children, as when ffmpeg was run through a shell, and stops it.
+     *
+     * @return the processes of all the trees still alive once stopped
+     */
+    private static List<ProcessHandle> stopAll(Stop stop) throws Exception {
+        String children = String.join(" ", Collections.nCopies(CHILDREN, "sleep 60 &"));
+        List<ProcessHandle> tree = new ArrayList<>();
+        for (int i = 0; i < STOPS; i++) {
+            Process process = new ProcessBuilder("/bin/sh", "-c", children + " wait").start();
+            while (process.descendants().count() < CHILDREN) {
+                Thread.sleep(10);
+            }
+            tree.add(process.toHandle());
+            process.descendants().forEach(tree::add);
+            stop.stop(process);
+            process.waitFor();
+        }
+        // give the signals time to land
+        Thread.sleep(500);
+        return tree.stream()
+                .filter(ProcessHandle::isAlive)
+                .collect(Collectors.toList());
+    }
+
+    private interface Stop {
+        void stop(Process process) throws Exception;
+    }
+}
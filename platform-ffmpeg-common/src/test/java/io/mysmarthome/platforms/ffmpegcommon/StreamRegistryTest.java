@@ -0,0 +1,152 @@
+package io.mysmarthome.platforms.ffmpegcommon;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StreamRegistryTest {
+
+    @Test
+    void secondViewerJoinsTheRunningStream() {
+        StreamRegistry<Object> registry = new StreamRegistry<>(1);
+        Object process = new Object();
+
+        StreamRegistry.Lease<Object> first = registry.acquire("cam", id -> process);
+        StreamRegistry.Lease<Object> second = registry.acquire("cam", id -> new Object());
+
+        assertEquals(StreamRegistry.Acquisition.STARTED, first.getAcquisition());
+        assertEquals(StreamRegistry.Acquisition.JOINED, second.getAcquisition());
+        assertSame(process, second.getHandle());
+        assertEquals(2, registry.getUsers("cam"));
+    }
+
+    @Test
+    void lastViewerOutStopsTheStream() {
+        StreamRegistry<Object> registry = new StreamRegistry<>(1);
+        List<Object> stopped = new ArrayList<>();
+        Object process = registry.acquire("cam", id -> new Object()).getHandle();
+        registry.acquire("cam", id -> new Object());
+
+        assertFalse(registry.release("cam", stopped::add));
+        assertTrue(registry.release("cam", stopped::add));
+
+        assertEquals(List.of(process), stopped);
+        assertFalse(registry.isActive("cam"));
+        assertTrue(registry.hasFreeSlots());
+    }
+
+    @Test
+    void rejectsNewStreamWhenSlotsAreTaken() {
+        StreamRegistry<Object> registry = new StreamRegistry<>(1);
+        registry.acquire("cam1", id -> new Object());
+
+        StreamRegistry.Lease<Object> lease = registry.acquire("cam2", id -> new Object());
+
+        assertEquals(StreamRegistry.Acquisition.REJECTED, lease.getAcquisition());
+        assertNull(lease.getHandle());
+        assertFalse(registry.isActive("cam2"));
+    }
+
+    @Test
+    void failedStartGivesTheSlotBack() {
+        StreamRegistry<Object> registry = new StreamRegistry<>(1);
+
+        assertThrows(IllegalStateException.class, () -> registry.acquire("cam", id -> {
+            throw new IllegalStateException("ffmpeg not found");
+        }));
+
+        assertFalse(registry.isActive("cam"));
+        assertEquals(StreamRegistry.Acquisition.STARTED,
+                registry.acquire("cam", id -> new Object()).getAcquisition());
+    }
+
+    @Test
+    void removeIgnoresAStreamStartedAgain() {
+        StreamRegistry<Object> registry = new StreamRegistry<>(1);
+        Object old = registry.acquire("cam", id -> new Object()).getHandle();
+        registry.release("cam", p -> {
+        });
+        registry.acquire("cam", id -> new Object());
+
+        assertFalse(registry.remove("cam", old, p -> {
+        }));
+        assertTrue(registry.isActive("cam"));
+    }
+
+    @Test
+    void concurrentStartsAndStopsNeverDuplicateAProcess() throws Exception {
+        int devices = 4;
+        int maxStreams = 2;
+        int threads = 16;
+        int rounds = 2000;
+        StreamRegistry<Object> registry = new StreamRegistry<>(maxStreams);
+        // by device, the processes the viewers hold and how many hold each one
+        Map<String, Map<Object, Integer>> held = new ConcurrentHashMap<>();
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger duplicates = new AtomicInteger();
+        AtomicInteger overLimit = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            workers.add(executor.submit(() -> {
+                go.await();
+                for (int i = 0; i < rounds; i++) {
+                    String id = "cam" + ThreadLocalRandom.current().nextInt(devices);
+                    StreamRegistry.Lease<Object> lease = registry.acquire(id, device -> {
+                        if (running.incrementAndGet() > maxStreams) {
+                            overLimit.incrementAndGet();
+                        }
+                        return new Object();
+                    });
+                    if (lease.getAcquisition() == StreamRegistry.Acquisition.REJECTED) {
+                        continue;
+                    }
+
+                    Map<Object, Integer> processes = held.computeIfAbsent(id, d -> new ConcurrentHashMap<>());
+                    synchronized (processes) {
+                        processes.merge(lease.getHandle(), 1, Integer::sum);
+                        if (processes.size() > 1) {
+                            duplicates.incrementAndGet();
+                        }
+                    }
+                    Thread.yield();
+                    synchronized (processes) {
+                        processes.computeIfPresent(lease.getHandle(), (p, n) -> n == 1 ? null : n - 1);
+                    }
+                    registry.release(id, process -> running.decrementAndGet());
+                }
+                return null;
+            }));
+        }
+        go.countDown();
+        for (Future<?> worker : workers) {
+            worker.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        assertEquals(0, duplicates.get(), "two processes running for the same device");
+        assertEquals(0, overLimit.get(), "processes started beyond the limit");
+        assertEquals(0, running.get());
+        assertTrue(registry.getAll().isEmpty());
+        assertTrue(registry.hasFreeSlots());
+    }
+}
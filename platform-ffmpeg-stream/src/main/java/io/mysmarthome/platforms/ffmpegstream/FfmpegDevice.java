@@ -36,4 +36,19 @@ public class FfmpegDevice implements Device {
     public String getCommand() {
         return getCustomInfo("command").asString();
     }
+
+    /**
+     * @return priority of the stream when the slots are all taken, a higher one may preempt a lower one
+     */
+    public int getPriority() {
+        return Integer.parseInt(getCustomInfo("priority").asString("0"));
+    }
+
+    public double getMaxFps() {
+        return Double.parseDouble(getCustomInfo("maxFps").asString("0"));
+    }
+
+    public int getFrameInterval() {
+        return Integer.parseInt(getCustomInfo("frameInterval").asString("1"));
+    }
 }
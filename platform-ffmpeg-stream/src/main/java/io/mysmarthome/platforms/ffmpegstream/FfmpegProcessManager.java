@@ -1,92 +1,209 @@
 package io.mysmarthome.platforms.ffmpegstream;
 
 import io.mysmarthome.device.Device;
+import io.mysmarthome.platforms.ffmpegcommon.CpuLimiter;
+import io.mysmarthome.platforms.ffmpegcommon.NamedThreadFactory;
+import io.mysmarthome.platforms.ffmpegcommon.StreamRegistry;
+import io.mysmarthome.platforms.ffmpegcommon.StreamRegistry.Acquisition;
+import io.mysmarthome.platforms.ffmpegcommon.StreamRegistry.Lease;
 import lombok.Data;
-import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.SystemUtils;
 
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 @Slf4j
 public class FfmpegProcessManager {
 
-    private final int maxParallelStreams;
-    private final Map<String, MonitoredProcess> activeStreams = new ConcurrentHashMap<>();
-
-    public FfmpegProcessManager(int maxAllowedParallelStreams) {
-        this.maxParallelStreams = maxAllowedParallelStreams;
+    private static final Duration CPU_SAMPLING_INTERVAL = Duration.ofSeconds(2);
+
+    private final Duration shutdownTimeout;
+    private final Duration admissionTimeout;
+    private final StreamRegistry<MonitoredProcess> activeStreams;
+    private final StreamExecutor streamExecutor;
+    private final ExecutorService admissionExecutor;
+    private CpuLimiter cpuLimiter;
+    private Consumer<Device> onPreemptListener = d -> {
+    };
+    private Predicate<Device> idleCheck = d -> false;
+
+    public FfmpegProcessManager(int maxAllowedParallelStreams, Duration shutdownTimeout, Duration admissionTimeout) {
+        this.shutdownTimeout = shutdownTimeout;
+        this.admissionTimeout = admissionTimeout;
+        this.activeStreams = new StreamRegistry<>(maxAllowedParallelStreams);
+        this.activeStreams.getAdmission().setPreemptor(this::preempt);
+        this.streamExecutor = new StreamExecutor(maxAllowedParallelStreams);
+        this.admissionExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("ffmpeg-stream-admission"));
     }
 
     public boolean isStreaming(Device device) {
-        return activeStreams.containsKey(device.getDeviceId());
-    }
-
-    public boolean canStream() {
-        return activeStreams.size() < maxParallelStreams;
+        return activeStreams.isActive(device.getDeviceId());
     }
 
-    public void incrementClientsNumber(Device device) {
-        if (activeStreams.containsKey(device.getDeviceId())) {
-            activeStreams.get(device.getDeviceId()).addUser();
-        }
+    /**
+     * Joins the running stream of the device, or starts a new one with a frame extractor from the given
+     * factory. When all the slots are taken, waits for one up to the admission timeout, and may preempt an idle
+     * stream of lower priority. Nothing blocks while waiting, the returned future completes once the stream was
+     * joined or started.
+     *
+     * @return future completed with true when a new stream was started
+     */
+    public CompletableFuture<Boolean> start(FfmpegDevice device, Supplier<FrameExtractor> frameExtractorFactory) {
+        return start(device, frameExtractorFactory, true);
     }
 
-    @SneakyThrows
-    public void start(FfmpegDevice device, FrameExtractor frameExtractor) {
-        if (!canStream()) {
-            throw new UnsupportedOperationException("Cannot start streaming for device [" + device.getDeviceId() + "]. " +
-                    "Maximum number of concurrent streams reached.");
-        }
+    /**
+     * @param waitForSlot when all the slots are taken, wait for one, otherwise fail right away
+     */
+    public CompletableFuture<Boolean> start(FfmpegDevice device, Supplier<FrameExtractor> frameExtractorFactory,
+                                            boolean waitForSlot) {
         if (!SystemUtils.IS_OS_LINUX) {
             throw new UnsupportedOperationException("Only linux OS are supported");
         }
 
-        activeStreams.put(device.getDeviceId(), new MonitoredProcess(device, frameExtractor));
+        Function<String, MonitoredProcess> starter = id -> {
+            MonitoredProcess p = new MonitoredProcess(device, frameExtractorFactory.get());
+            // the extractor restarts ffmpeg by itself, if it still returns the stream is dead and frees its slot
+            streamExecutor.submit(id, p.getFrameExtractor(), () -> activeStreams.remove(id, p, x -> {
+            }));
+            return p;
+        };
+
+        Lease<MonitoredProcess> lease = activeStreams.acquire(device.getDeviceId(), starter);
+        if (lease.getAcquisition() != Acquisition.REJECTED) {
+            return CompletableFuture.completedFuture(acquired(lease));
+        }
+        if (!waitForSlot) {
+            return CompletableFuture.failedFuture(noSlot(device));
+        }
 
-        Thread frameExtractorThread = new Thread(frameExtractor);
-        frameExtractorThread.start();
+        log.info("No slot free for device {}, waiting for one", device.getDeviceId());
+        return activeStreams.getAdmission().acquire(device.getPriority(), admissionTimeout)
+                .exceptionally(e -> {
+                    throw noSlot(device);
+                })
+                // the slot is handed over by whoever released it, do not start ffmpeg on that thread
+                .thenApplyAsync(r -> acquired(activeStreams.acquire(device.getDeviceId(), starter, true)),
+                        admissionExecutor);
     }
 
-    public void stop(Device device) {
-        MonitoredProcess process = activeStreams.get(device.getDeviceId());
-        process.removeUser();
-        if (process.hasUsers()) {
-            return;
+    private boolean acquired(Lease<MonitoredProcess> lease) {
+        if (lease.getAcquisition() == Acquisition.JOINED) {
+            lease.getHandle().touch();
         }
+        return lease.getAcquisition() == Acquisition.STARTED;
+    }
 
-        process.getFrameExtractor().stop();
-        activeStreams.remove(device.getDeviceId());
+    private UnsupportedOperationException noSlot(FfmpegDevice device) {
+        return new UnsupportedOperationException("Cannot start streaming for device [" + device.getDeviceId() + "]. " +
+                "Maximum number of concurrent streams reached.");
     }
 
-    public void stopAll() {
-        activeStreams.values()
-                .forEach(m -> m.getFrameExtractor().stop());
+    public void setOnPreemptListener(Consumer<Device> onPreemptListener) {
+        this.onPreemptListener = onPreemptListener;
     }
 
-    @Data
-    private static class MonitoredProcess {
+    /**
+     * @param idleCheck tells whether nobody is really watching the stream of a device, only such streams are
+     *                  preempted
+     */
+    public void setIdleCheck(Predicate<Device> idleCheck) {
+        this.idleCheck = idleCheck;
+    }
 
-        private final Device device;
-        private final FrameExtractor frameExtractor;
-        private int users = 1;
+    /**
+     * Stops the idle stream with a lower priority that was joined least recently, a stream with viewers is never
+     * preempted.
+     */
+    private boolean preempt(int priority) {
+        Optional<MonitoredProcess> victim = activeStreams.getAll().stream()
+                .filter(p -> p.getDevice().getPriority() < priority)
+                .filter(p -> idleCheck.test(p.getDevice()))
+                .min(Comparator.comparingLong(MonitoredProcess::getLastJoinedNanos));
+        if (victim.isEmpty()) {
+            return false;
+        }
 
-        public MonitoredProcess(Device device, FrameExtractor frameExtractor) {
-            this.device = device;
-            this.frameExtractor = frameExtractor;
+        MonitoredProcess p = victim.get();
+        if (!activeStreams.remove(p.getDevice().getDeviceId(), p, x -> x.getFrameExtractor().stop())) {
+            return false;
         }
+        log.info("Preempt stream for {}", p.getDevice().getDeviceId());
+        onPreemptListener.accept(p.getDevice());
+        return true;
+    }
+
+    /**
+     * @return true when the last user left and the stream was stopped
+     */
+    public boolean stop(Device device) {
+        return activeStreams.release(device.getDeviceId(), p -> p.getFrameExtractor().stop());
+    }
 
-        public void addUser() {
-            users++;
+    public void stopAll() {
+        if (cpuLimiter != null) {
+            cpuLimiter.stop();
         }
+        admissionExecutor.shutdownNow();
+        activeStreams.removeAll(p -> p.getFrameExtractor().stop());
+        if (!streamExecutor.shutdown(shutdownTimeout)) {
+            log.warn("Some frame extractors did not stop within {}", shutdownTimeout);
+        }
+    }
+
+    public List<StreamMetrics> getStreamMetrics() {
+        return streamExecutor.getMetrics();
+    }
+
+    /**
+     * Admits new streams only while the host has CPU left, the maximum of parallel streams is then a ceiling.
+     *
+     * @param budget            percentage of the whole host the streams may use
+     * @param initialStreamCost percentage of the host a stream is assumed to use until one was measured
+     */
+    public void enableCpuBudget(double budget, double initialStreamCost) {
+        cpuLimiter = new CpuLimiter(budget, initialStreamCost, CPU_SAMPLING_INTERVAL, this::getProcesses,
+                activeStreams.getAdmission());
+        cpuLimiter.start();
+    }
 
-        public void removeUser() {
-            users--;
+    /**
+     * @return CPU used by each stream, in percent of the host, empty when there is no CPU budget
+     */
+    public Map<String, Double> getStreamCosts() {
+        return cpuLimiter == null ? Map.of() : cpuLimiter.getStreamCosts();
+    }
+
+    private Map<String, ProcessHandle> getProcesses() {
+        Map<String, ProcessHandle> processes = new HashMap<>();
+        for (MonitoredProcess p : activeStreams.getAll()) {
+            p.getFrameExtractor().getProcessHandle()
+                    .ifPresent(h -> processes.put(p.getDevice().getDeviceId(), h));
         }
+        return processes;
+    }
+
+    @Data
+    private static class MonitoredProcess {
+
+        private final FfmpegDevice device;
+        private final FrameExtractor frameExtractor;
+        private volatile long lastJoinedNanos = System.nanoTime();
 
-        public boolean hasUsers() {
-            return users > 0;
+        void touch() {
+            lastJoinedNanos = System.nanoTime();
         }
     }
 }
@@ -6,14 +6,27 @@ import io.mysmarthome.platform.PlatformPlugin;
 import io.mysmarthome.platform.message.DeviceHandler;
 import io.mysmarthome.platform.message.OnReceive;
 import io.mysmarthome.platform.message.ReceivedMessage;
+import io.mysmarthome.platforms.ffmpegcommon.CommandLine;
+import io.mysmarthome.platforms.ffmpegcommon.NamedThreadFactory;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.pf4j.Extension;
 import org.pf4j.Plugin;
 import org.pf4j.PluginWrapper;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 @Slf4j
@@ -26,21 +39,70 @@ public class FfmpegStreamClientPlugin extends Plugin {
     @Extension
     public static class HttpClient implements PlatformPlugin<FfmpegDevice> {
 
+        private static final int MAX_STREAMS_PER_CORE = 4;
+
         private final Map<String, DeviceHandler> handlers = new HashMap<>();
+        private final Map<String, FrameBroadcaster> broadcasters = new ConcurrentHashMap<>();
+        // the streaming state sent to the handlers follows the viewers, snapshots do not count
+        private final Map<String, AtomicInteger> viewers = new ConcurrentHashMap<>();
+        // completes once the stream of the viewer was joined or started, a viewer leaving before releases it then
+        private final Map<FrameSubscription, CompletableFuture<Boolean>> admissions = new ConcurrentHashMap<>();
         private String executablePath;
+        private int subscriberQueueSize;
+        private Duration stopTimeout;
+        private long snapshotTtl;
+        private int snapshotTimeout;
         private FfmpegProcessManager ffmpegProcessManager;
+        private ExecutorService deliveryExecutor;
 
         @Override
         public void start(ApplicationProperties config) {
             executablePath = config.getString("ffmpeg.executablePath");
-            int maxConcurrencyExecution = config.getInt("ffmpeg.maxParallelStreams", 1);
+            // with a CPU budget the number of streams adapts to the host, the maximum is only a ceiling
+            int cpuBudget = config.getInt("ffmpeg.cpuBudget", 0);
+            int maxConcurrencyExecution = config.getInt("ffmpeg.maxParallelStreams",
+                    cpuBudget > 0 ? MAX_STREAMS_PER_CORE * Runtime.getRuntime().availableProcessors() : 1);
+            subscriberQueueSize = config.getInt("ffmpeg.subscriberQueueSize", 2);
+            stopTimeout = Duration.ofSeconds(config.getInt("ffmpeg.stopTimeout", 5));
+            snapshotTtl = TimeUnit.MILLISECONDS.toNanos(config.getInt("ffmpeg.snapshotTtl", 1000));
+            snapshotTimeout = config.getInt("ffmpeg.snapshotTimeout", 10);
+
+            Duration shutdownTimeout = Duration.ofSeconds(config.getInt("ffmpeg.shutdownTimeout", 5));
+            Duration admissionTimeout = Duration.ofSeconds(config.getInt("ffmpeg.admissionTimeout", 10));
 
-            ffmpegProcessManager = new FfmpegProcessManager(maxConcurrencyExecution);
+            ffmpegProcessManager = new FfmpegProcessManager(maxConcurrencyExecution, shutdownTimeout, admissionTimeout);
+            ffmpegProcessManager.setOnPreemptListener(device -> {
+                // the stream and its users are gone, drop the viewers too so their stop requests do not release
+                // a stream started since
+                FrameBroadcaster broadcaster = broadcasters.get(device.getDeviceId());
+                if (broadcaster != null) {
+                    broadcaster.close().forEach(admissions::remove);
+                }
+                viewers.remove(device.getDeviceId());
+                broadcastState(device, "0");
+            });
+            // a viewer that had no frame for a while may be gone, snapshot only streams have no viewer at all
+            long idleTimeout = TimeUnit.SECONDS.toNanos(config.getInt("ffmpeg.preemptIdleTimeout", 10));
+            ffmpegProcessManager.setIdleCheck(device -> {
+                FrameBroadcaster broadcaster = broadcasters.get(device.getDeviceId());
+                return broadcaster == null || broadcaster.isIdle(idleTimeout);
+            });
+            if (cpuBudget > 0) {
+                // until a stream was measured, each one is assumed to take a whole core
+                ffmpegProcessManager.enableCpuBudget(cpuBudget, config.getInt("ffmpeg.initialStreamCost",
+                        100 / Runtime.getRuntime().availableProcessors()));
+            }
+            // the backlog of a slow viewer waits in its own bounded queue, not in the pool
+            deliveryExecutor = Executors.newFixedThreadPool(
+                    config.getInt("ffmpeg.deliveryThreads", Runtime.getRuntime().availableProcessors()),
+                    new NamedThreadFactory("ffmpeg-stream-delivery"));
         }
 
         @Override
         public void shutdown() {
             ffmpegProcessManager.stopAll();
+            broadcasters.values().forEach(FrameBroadcaster::close);
+            deliveryExecutor.shutdown();
         }
 
         @SneakyThrows
@@ -65,37 +127,170 @@ public class FfmpegStreamClientPlugin extends Plugin {
 
         @Override
         public void onStartStream(FfmpegDevice device, Consumer<Object> processPayload) {
-            if (ffmpegProcessManager.isStreaming(device)) {
-                ffmpegProcessManager.incrementClientsNumber(device);
-                return;
-            }
+            onStartStream(device, processPayload, SubscriptionOptions.of(device));
+        }
 
-            String command = prepareCommand(device);
-            FrameExtractor frameExtractor = new FrameExtractor(command);
-            frameExtractor.setFrameExtractorListener(processPayload::accept);
-            ffmpegProcessManager.start(device, frameExtractor);
+        /**
+         * Subscribes right away, the stream is joined or started once a slot is free, without blocking the caller.
+         * When no slot got free within the admission timeout the viewer is dropped.
+         */
+        public void onStartStream(FfmpegDevice device, Consumer<Object> processPayload, SubscriptionOptions options) {
+            FrameBroadcaster broadcaster = getBroadcaster(device);
+            FrameSubscription subscription = broadcaster.subscribe(processPayload, options);
+            CompletableFuture<Boolean> admitted = new CompletableFuture<>();
+            admissions.put(subscription, admitted);
 
-            if (handlers.containsKey(device.getDeviceId())) {
-                ReceivedMessage message = ReceivedMessage.createSimpleMessage("1");
-                handlers.get(device.getDeviceId()).broadcastMessage(message);
+            CompletableFuture<Boolean> stream;
+            try {
+                stream = acquireStream(device, broadcaster, true);
+            } catch (Exception e) {
+                notAdmitted(device, broadcaster, subscription);
+                throw e;
             }
+            stream.whenComplete((started, e) -> {
+                if (e != null) {
+                    log.warn("Cannot stream device {}", device.getDeviceId(), e);
+                    notAdmitted(device, broadcaster, subscription);
+                    admitted.completeExceptionally(e);
+                    return;
+                }
+                if (getViewers(device).incrementAndGet() == 1) {
+                    broadcastState(device, "1");
+                }
+                admitted.complete(started);
+            });
+        }
+
+        private void notAdmitted(FfmpegDevice device, FrameBroadcaster broadcaster, FrameSubscription subscription) {
+            // the subscription never had a stream, the ones detached along with it had one
+            admissions.remove(subscription);
+            viewersLeft(device, broadcaster.unsubscribe(subscription));
         }
 
+        /**
+         * The platform does not say which viewer is leaving, and detaching the wrong one would cut off a viewer
+         * still watching. The subscriptions are kept until all the viewers of the device left, see
+         * {@link FrameBroadcaster#unsubscribeUnidentified()}. Callers that know their consumer should use
+         * {@link #onStopStream(FfmpegDevice, Consumer)}.
+         */
         @Override
         public void onStopStream(FfmpegDevice device) {
-            ffmpegProcessManager.stop(device);
-            if (ffmpegProcessManager.isStreaming(device)) {
-                return;
+            viewersLeft(device, getBroadcaster(device).unsubscribeUnidentified());
+        }
+
+        /**
+         * Stops the viewer subscribed with the given consumer.
+         */
+        public void onStopStream(FfmpegDevice device, Consumer<Object> processPayload) {
+            viewersLeft(device, getBroadcaster(device).unsubscribe(processPayload));
+        }
+
+        /**
+         * Releases the stream of each subscription detached, once it was admitted.
+         */
+        private void viewersLeft(FfmpegDevice device, List<FrameSubscription> subscriptions) {
+            for (FrameSubscription subscription : subscriptions) {
+                CompletableFuture<Boolean> admitted = admissions.remove(subscription);
+                if (admitted == null) {
+                    continue;
+                }
+                admitted.thenRun(() -> {
+                    releaseStream(device);
+                    if (getViewers(device).decrementAndGet() == 0) {
+                        broadcastState(device, "0");
+                    }
+                });
             }
+        }
+
+        @SneakyThrows
+        @Override
+        public CompletableFuture<Optional<ReceivedMessage>> onSend(FfmpegDevice device, Object payload) {
+            Map<String, Object> request = (Map<String, Object>) payload;
+            if (!isSnapshot(request)) {
+                throw new UnsupportedOperationException();
+            }
+
+            FrameBroadcaster broadcaster = getBroadcaster(device);
+            Optional<byte[]> cached = broadcaster.getLatestFrame(snapshotTtl);
+            if (cached.isPresent()) {
+                return CompletableFuture.completedFuture(cached.map(this::toMessage));
+            }
+
+            // cold camera, run the stream just for the time needed to get one frame, if a slot is free right now
+            CompletableFuture<byte[]> nextFrame = broadcaster.nextFrame();
+            CompletableFuture<Boolean> stream;
+            try {
+                stream = acquireStream(device, broadcaster, false);
+            } catch (Exception e) {
+                nextFrame.cancel(false);
+                throw e;
+            }
+            return stream
+                    .whenComplete((started, e) -> {
+                        if (e != null) {
+                            nextFrame.cancel(false);
+                        }
+                    })
+                    .thenCompose(started -> nextFrame
+                            .orTimeout(snapshotTimeout, TimeUnit.SECONDS)
+                            .whenComplete((frame, e) -> {
+                                // cancelled when the stream was preempted, its user is already gone
+                                if (!(e instanceof CancellationException)) {
+                                    releaseStream(device);
+                                }
+                            }))
+                    .thenApply(frame -> Optional.of(toMessage(frame)));
+        }
+
+        private boolean isSnapshot(Map<String, Object> request) {
+            return "snapshot".equals(request.get("val"));
+        }
+
+        private ReceivedMessage toMessage(byte[] frame) {
+            return ReceivedMessage.builder()
+                    .message(frame)
+                    .build();
+        }
+
+        private FrameBroadcaster getBroadcaster(FfmpegDevice device) {
+            return broadcasters.computeIfAbsent(device.getDeviceId(),
+                    id -> new FrameBroadcaster(id, deliveryExecutor, subscriberQueueSize));
+        }
+
+        private AtomicInteger getViewers(FfmpegDevice device) {
+            return viewers.computeIfAbsent(device.getDeviceId(), id -> new AtomicInteger());
+        }
+
+        /**
+         * @param waitForSlot wait for a slot when none is free, rather than failing right away
+         */
+        private CompletableFuture<Boolean> acquireStream(FfmpegDevice device, FrameBroadcaster broadcaster,
+                                                         boolean waitForSlot) {
+            return ffmpegProcessManager.start(device, () -> {
+                FrameExtractor frameExtractor = new FrameExtractor(prepareCommand(device), stopTimeout);
+                frameExtractor.setFrameListener(broadcaster);
+                return frameExtractor;
+            }, waitForSlot);
+        }
+
+        private void releaseStream(FfmpegDevice device) {
+            if (ffmpegProcessManager.stop(device)) {
+                getBroadcaster(device).clearLatestFrame();
+            }
+        }
 
+        private void broadcastState(Device device, String state) {
             if (handlers.containsKey(device.getDeviceId())) {
-                ReceivedMessage message = ReceivedMessage.createSimpleMessage("0");
-                handlers.get(device.getDeviceId()).broadcastMessage(message);
+                handlers.get(device.getDeviceId()).broadcastMessage(ReceivedMessage.createSimpleMessage(state));
             }
         }
 
-        private String prepareCommand(FfmpegDevice device) {
-            return executablePath + " " + device.getCommand();
+        private List<String> prepareCommand(FfmpegDevice device) {
+            List<String> command = new ArrayList<>();
+            command.add(executablePath);
+            command.addAll(CommandLine.split(device.getCommand()));
+            return command;
         }
     }
 }
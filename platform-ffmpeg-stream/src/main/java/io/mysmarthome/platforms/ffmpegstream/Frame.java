@@ -0,0 +1,111 @@
+package io.mysmarthome.platforms.ffmpegstream;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A jpeg frame backed by a pooled buffer. The frame starts with one reference, owned by the {@link FrameExtractor};
+ * a {@link FrameListener} that keeps the frame after {@code onFrame} returns must {@link #retain()} it and
+ * {@link #release()} it when done, the buffer goes back to the pool once the last reference is released.
+ */
+public class Frame {
+
+    private final FramePool pool;
+    private final AtomicInteger references = new AtomicInteger(1);
+    private byte[] data;
+    private int length;
+    private long sequence;
+    private long timestamp;
+    private volatile byte[] shared;
+
+    Frame(FramePool pool, byte[] data) {
+        this.pool = pool;
+        this.data = data;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when the frame was completed
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return a read only view over the frame bytes, no copy is made
+     */
+    public ByteBuffer buffer() {
+        return ByteBuffer.wrap(data, 0, length).asReadOnlyBuffer();
+    }
+
+    public byte[] toByteArray() {
+        byte[] copy = new byte[length];
+        System.arraycopy(data, 0, copy, 0, length);
+        return copy;
+    }
+
+    /**
+     * @return copy of the frame bytes made on the first call and shared by all the callers, so a frame sent to
+     * many viewers is copied once, it must not be modified
+     */
+    public byte[] sharedCopy() {
+        byte[] copy = shared;
+        if (copy == null) {
+            synchronized (this) {
+                copy = shared;
+                if (copy == null) {
+                    copy = toByteArray();
+                    shared = copy;
+                }
+            }
+        }
+        return copy;
+    }
+
+    public Frame retain() {
+        if (references.getAndIncrement() <= 0) {
+            references.decrementAndGet();
+            throw new IllegalStateException("Frame already released");
+        }
+        return this;
+    }
+
+    public void release() {
+        int left = references.decrementAndGet();
+        if (left == 0) {
+            byte[] buffer = data;
+            data = null;
+            pool.recycle(buffer);
+        } else if (left < 0) {
+            throw new IllegalStateException("Frame released more times than retained");
+        }
+    }
+
+    void append(byte[] buffer, int offset, int n) {
+        if (length + n > data.length) {
+            byte[] bigger = pool.allocate(length + n);
+            System.arraycopy(data, 0, bigger, 0, length);
+            pool.recycle(data);
+            data = bigger;
+        }
+        System.arraycopy(buffer, offset, data, length, n);
+        length += n;
+    }
+
+    void reset() {
+        length = 0;
+        shared = null;
+    }
+
+    void complete(long sequence) {
+        this.sequence = sequence;
+        this.timestamp = System.nanoTime();
+    }
+}
@@ -0,0 +1,183 @@
+package io.mysmarthome.platforms.ffmpegstream;
+
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Fans out the frames of one ffmpeg process to all the viewers of the device, and keeps the latest frame for
+ * snapshots.
+ */
+public class FrameBroadcaster implements FrameListener {
+
+    private final String deviceId;
+    private final Executor executor;
+    private final int queueSize;
+    private final Deque<FrameSubscription> subscriptions = new ConcurrentLinkedDeque<>();
+    private final List<CompletableFuture<byte[]>> nextFrameRequests = new CopyOnWriteArrayList<>();
+    private final Object latestLock = new Object();
+    private Frame latest;
+    // viewers that left without saying which subscription was theirs
+    private int unidentifiedLeaves = 0;
+
+    public FrameBroadcaster(String deviceId, Executor executor, int queueSize) {
+        this.deviceId = deviceId;
+        this.executor = executor;
+        this.queueSize = queueSize;
+    }
+
+    public synchronized FrameSubscription subscribe(Consumer<Object> consumer, SubscriptionOptions options) {
+        FrameSubscription subscription = new FrameSubscription(deviceId, consumer, executor, queueSize, options);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * @return the subscriptions detached, the given one and the ones known to be gone since
+     */
+    public synchronized List<FrameSubscription> unsubscribe(FrameSubscription subscription) {
+        if (!subscriptions.remove(subscription)) {
+            return List.of();
+        }
+        subscription.close();
+        List<FrameSubscription> detached = new ArrayList<>();
+        detached.add(subscription);
+        detached.addAll(settleUnidentifiedLeaves());
+        return detached;
+    }
+
+    /**
+     * Detaches the subscription of the given consumer.
+     *
+     * @return the subscriptions detached, none when the consumer was not subscribed
+     */
+    public synchronized List<FrameSubscription> unsubscribe(Consumer<Object> consumer) {
+        return subscriptions.stream()
+                .filter(subscription -> subscription.isFor(consumer))
+                .findFirst()
+                .map(this::unsubscribe)
+                .orElse(List.of());
+    }
+
+    /**
+     * A viewer left without saying which one. Rather than detaching a viewer still watching, all the
+     * subscriptions stay until as many viewers left as there are subscriptions, then they are all detached.
+     * Until then the viewers that left keep being sent frames.
+     *
+     * @return the subscriptions detached, none while some viewers may still be watching, or when there was no
+     * subscription left to account for, the viewers were already dropped
+     */
+    public synchronized List<FrameSubscription> unsubscribeUnidentified() {
+        if (unidentifiedLeaves >= subscriptions.size()) {
+            return List.of();
+        }
+        unidentifiedLeaves++;
+        return settleUnidentifiedLeaves();
+    }
+
+    private List<FrameSubscription> settleUnidentifiedLeaves() {
+        if (unidentifiedLeaves == 0 || unidentifiedLeaves < subscriptions.size()) {
+            return List.of();
+        }
+        unidentifiedLeaves = 0;
+        return closeSubscriptions();
+    }
+
+    private List<FrameSubscription> closeSubscriptions() {
+        List<FrameSubscription> closed = new ArrayList<>();
+        FrameSubscription subscription;
+        while ((subscription = subscriptions.poll()) != null) {
+            subscription.close();
+            closed.add(subscription);
+        }
+        return closed;
+    }
+
+    public int getSubscribers() {
+        return subscriptions.size();
+    }
+
+    /**
+     * @param maxAge nanoseconds without a frame delivered after which a viewer is not watching anymore
+     * @return true when no snapshot is waiting and no viewer had a frame within the given age, the stream can
+     * then be stopped without anybody noticing
+     */
+    public boolean isIdle(long maxAge) {
+        long now = System.nanoTime();
+        return nextFrameRequests.isEmpty()
+                && subscriptions.stream().allMatch(s -> now - s.getLastDeliveryNanos() > maxAge);
+    }
+
+    /**
+     * @param maxAge maximum age of the frame, in nanoseconds
+     * @return copy of the latest frame, if it is not older than the given age
+     */
+    public Optional<byte[]> getLatestFrame(long maxAge) {
+        Frame frame;
+        synchronized (latestLock) {
+            if (latest == null || System.nanoTime() - latest.getTimestamp() > maxAge) {
+                return Optional.empty();
+            }
+            frame = latest.retain();
+        }
+        try {
+            return Optional.of(frame.sharedCopy());
+        } finally {
+            frame.release();
+        }
+    }
+
+    public CompletableFuture<byte[]> nextFrame() {
+        CompletableFuture<byte[]> request = new CompletableFuture<>();
+        nextFrameRequests.add(request);
+        request.whenComplete((frame, e) -> nextFrameRequests.remove(request));
+        return request;
+    }
+
+    public void clearLatestFrame() {
+        replaceLatest(null);
+    }
+
+    @Override
+    public void onFrame(Frame frame) {
+        replaceLatest(frame.retain());
+
+        for (FrameSubscription subscription : subscriptions) {
+            subscription.offer(frame);
+        }
+        if (!nextFrameRequests.isEmpty()) {
+            byte[] copy = frame.sharedCopy();
+            nextFrameRequests.forEach(request -> request.complete(copy));
+        }
+    }
+
+    private void replaceLatest(Frame frame) {
+        Frame previous;
+        synchronized (latestLock) {
+            previous = latest;
+            latest = frame;
+        }
+        if (previous != null) {
+            previous.release();
+        }
+    }
+
+    /**
+     * Drops all the viewers and pending snapshots, the broadcaster can be subscribed to again afterwards.
+     *
+     * @return the subscriptions dropped
+     */
+    public synchronized List<FrameSubscription> close() {
+        unidentifiedLeaves = 0;
+        List<FrameSubscription> closed = closeSubscriptions();
+        nextFrameRequests.forEach(request -> request.cancel(false));
+        clearLatestFrame();
+        return closed;
+    }
+}
@@ -1,103 +1,187 @@
 package io.mysmarthome.platforms.ffmpegstream;
 
+import io.mysmarthome.platforms.ffmpegcommon.Backoff;
+import io.mysmarthome.platforms.ffmpegcommon.LogRing;
+import io.mysmarthome.platforms.ffmpegcommon.NamedThreadFactory;
+import io.mysmarthome.platforms.ffmpegcommon.ProcessTree;
+import io.mysmarthome.platforms.ffmpegcommon.StreamHealth;
 import lombok.RequiredArgsConstructor;
-import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+@Slf4j
 @RequiredArgsConstructor
 public class FrameExtractor implements Runnable {
 
-    private static final int BUFFER_SIZE = 4_000;
-    private static final int FRAME_SIZE = 512_000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    private static final int POOLED_FRAMES = 4;
+    private static final int LOG_LINES = 50;
+    private static final Duration RESTART_INITIAL_DELAY = Duration.ofSeconds(1);
+    private static final Duration RESTART_MAX_DELAY = Duration.ofSeconds(30);
+    private static final ThreadFactory LOG_THREADS = new NamedThreadFactory("ffmpeg-stream-stderr");
 
-    private final String command;
+    private final List<String> command;
+    private final Duration stopTimeout;
     private final AtomicBoolean isAlive = new AtomicBoolean(false);
+    private final FramePool framePool = new FramePool(POOLED_FRAMES);
+    private final StreamHealth health = new StreamHealth();
+    private final LogRing output = new LogRing(LOG_LINES);
+    private final Backoff backoff = new Backoff(RESTART_INITIAL_DELAY, RESTART_MAX_DELAY);
 
     private Process process;
-    private FrameExtractorListener listener;
+    private boolean stopped = false;
+    private volatile FrameListener listener;
+    private volatile long framesProcessed = 0;
 
+    /**
+     * Listener that gets a copy of every frame.
+     */
     public void setFrameExtractorListener(FrameExtractorListener listener) {
-        this.listener = listener;
+        this.listener = frame -> listener.onFrame(frame.toByteArray());
     }
 
-//    private String[] buildCommand() {
-//        // ffmpeg -re -f mjpeg -i http://sdip.dynip.sapo.pt:8081/stream -nostdin -f singlejpeg -
-//        return new String[]{
-//                "ffmpeg",
-//                "-i", url, // input
-//                "-nostdin", // no ask to user input
-//                "-f", "singlejpeg", // convert to jpg
-//                "-"}; // redirect output to stdout
-//    }
-
-    private synchronized boolean isAlive(Process p) {
-        try {
-            p.exitValue();
-            return false;
-        } catch (IllegalThreadStateException e) {
-            return isAlive.get();
-        }
+    /**
+     * Listener that gets the pooled frames, without any copy.
+     */
+    public void setFrameListener(FrameListener listener) {
+        this.listener = listener;
     }
 
-    @SneakyThrows
+    /**
+     * Runs ffmpeg and parses its output until stopped. When ffmpeg exits on its own, for instance because the
+     * camera rebooted, it is started again after an exponential backoff. The extractor is stopped when the last
+     * user of the stream leaves, so it is restarted only while there are users.
+     */
     @Override
     public void run() {
         ProcessBuilder processBuilder = new ProcessBuilder();
-        processBuilder.command("/bin/bash", "-l", "-c", command);
-        processBuilder.redirectErrorStream(true); // so we can ignore the error stream
-        process = processBuilder.start();
-        isAlive.set(true);
-        InputStream out = process.getInputStream();
-
-        int bufferLen = 0;
-        int idx = 0;
-        byte[] bufferImg = new byte[FRAME_SIZE];
-        byte[] buffer = new byte[BUFFER_SIZE];
-        boolean processingFrame = false;
-
-        while (isAlive(process)) {
-            int no = out.available();
-            if (no > 0) {
-                int n = out.read(buffer, 0, Math.min(no, buffer.length));
-
-                // start frame
-                if (!processingFrame) {
-                    if (n > 2 && buffer[0] == (byte) 0xff && buffer[1] == (byte) 0xD8 && buffer[2] == (byte) 0xFF) {
-                        bufferLen = n;
-                        idx = n;
-                        System.arraycopy(buffer, 0, bufferImg, 0, n);
-                        processingFrame = true;
-                    }
-                    continue;
+        processBuilder.command(command);
+
+        while (true) {
+            Process current;
+            long uptime = 0;
+            synchronized (this) {
+                if (stopped) {
+                    return;
                 }
+                try {
+                    process = processBuilder.start();
+                    current = process;
+                    isAlive.set(true);
+                } catch (IOException e) {
+                    log.error("Could not start {}", command, e);
+                    current = null;
+                }
+            }
 
-                // end frame
-                if (n > 1 && buffer[n - 2] == (byte) 0xff && buffer[n - 1] == (byte) 0xD9) {
-                    bufferLen += n - 1;
-                    System.arraycopy(buffer, 0, bufferImg, idx, n - 1);
+            if (current != null) {
+                // keep the log lines out of the jpeg stream, the last ones tell why ffmpeg stopped
+                output.follow(current.getErrorStream(), LOG_THREADS);
+                health.markUp();
+                readFrames(current);
+                if (!isAlive.getAndSet(false)) {
+                    return; // stopped
+                }
+                uptime = health.getUptimeSeconds();
+                health.markDown();
+                log.warn("ffmpeg exited after {}s, last output: {}", uptime, output.getLines());
+                ProcessTree.destroy(current, stopTimeout); // whatever it left behind
+            }
 
-                    if (listener != null) {
-                        byte[] frame = new byte[bufferLen];
-                        System.arraycopy(bufferImg, 0, frame, 0, bufferLen);
-                        listener.onFrame(frame);
-                    }
+            if (!awaitRestart(uptime)) {
+                return;
+            }
+            health.markRestart();
+        }
+    }
 
-                    processingFrame = false;
-                    continue;
-                }
+    private void readFrames(Process current) {
+        MjpegFrameParser parser = new MjpegFrameParser(MAX_FRAME_SIZE, framePool, this::dispatch);
+        byte[] buffer = new byte[BUFFER_SIZE];
 
-                // continue frame
-                bufferLen += n;
-                System.arraycopy(buffer, 0, bufferImg, idx, n);
-                idx = bufferLen;
+        try (InputStream out = current.getInputStream()) {
+            int n;
+            // read blocks until ffmpeg writes something, and returns -1 once the process closes its output
+            while (isAlive.get() && (n = out.read(buffer)) != -1) {
+                parser.feed(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            if (isAlive.get()) {
+                log.warn("Error reading the output of ffmpeg", e);
             }
+            // otherwise the stream was closed by stop()
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * Waits for the next attempt, the backoff starts over when the last process ran long enough.
+     *
+     * @return false when stopped while waiting
+     */
+    private synchronized boolean awaitRestart(long uptime) {
+        if (uptime >= backoff.getMax().getSeconds()) {
+            backoff.reset();
+        }
+        long deadline = System.nanoTime() + backoff.next().toNanos();
+        long remaining;
+        while (!stopped && (remaining = deadline - System.nanoTime()) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return !stopped;
+    }
+
+    /**
+     * @return the running ffmpeg, empty while it is down
+     */
+    public synchronized Optional<ProcessHandle> getProcessHandle() {
+        return process != null && process.isAlive() ? Optional.of(process.toHandle()) : Optional.empty();
+    }
+
+    public StreamHealth getHealth() {
+        return health;
+    }
+
+    /**
+     * @return last lines logged by ffmpeg
+     */
+    public LogRing getOutput() {
+        return output;
+    }
+
+    public long getFramesProcessed() {
+        return framesProcessed;
+    }
+
+    private void dispatch(Frame frame) {
+        framesProcessed++; // only written by the extractor thread
+        FrameListener current = listener;
+        if (current != null) {
+            current.onFrame(frame);
         }
     }
 
     public synchronized void stop() {
-        process.destroy();
+        stopped = true;
         isAlive.set(false);
+        notifyAll();
+        if (process != null) {
+            ProcessTree.destroy(process, stopTimeout);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,10 @@
+package io.mysmarthome.platforms.ffmpegstream;
+
+/**
+ * Receives the frames without copying them. The frame is only valid during the call, unless it is
+ * {@link Frame#retain() retained}.
+ */
+@FunctionalInterface
+public interface FrameListener {
+    void onFrame(Frame frame);
+}
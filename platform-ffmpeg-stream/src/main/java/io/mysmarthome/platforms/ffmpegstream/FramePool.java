@@ -0,0 +1,46 @@
+package io.mysmarthome.platforms.ffmpegstream;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Recycles the frame buffers of a stream so that a new frame does not allocate a new, possibly humongous, array.
+ * Buffers grow to the size of the biggest frame seen and are kept while the pool has room for them.
+ */
+public class FramePool {
+
+    private static final int INITIAL_CAPACITY = 512_000;
+
+    private final BlockingQueue<byte[]> buffers;
+    private volatile int capacity = INITIAL_CAPACITY;
+
+    public FramePool(int maxPooledBuffers) {
+        this.buffers = new ArrayBlockingQueue<>(maxPooledBuffers);
+    }
+
+    Frame acquire() {
+        byte[] buffer;
+        while ((buffer = buffers.poll()) != null) {
+            if (buffer.length >= capacity) {
+                return new Frame(this, buffer);
+            }
+            // buffer smaller than the current frames, let it go
+        }
+        return new Frame(this, new byte[capacity]);
+    }
+
+    byte[] allocate(int minCapacity) {
+        int newCapacity = capacity;
+        while (newCapacity < minCapacity) {
+            newCapacity += newCapacity >> 1;
+        }
+        capacity = newCapacity;
+        return new byte[newCapacity];
+    }
+
+    void recycle(byte[] buffer) {
+        if (buffer != null && buffer.length >= capacity) {
+            buffers.offer(buffer);
+        }
+    }
+}
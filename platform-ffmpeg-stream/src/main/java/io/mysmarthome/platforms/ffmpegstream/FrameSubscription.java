@@ -0,0 +1,148 @@
+package io.mysmarthome.platforms.ffmpegstream;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * One viewer of a stream. Frames are queued in a small bounded queue and delivered on the delivery executor,
+ * when the viewer is too slow the oldest queued frame is dropped, so it never holds back the decoder thread
+ * or the other viewers.
+ */
+@Slf4j
+public class FrameSubscription {
+
+    private final String deviceId;
+    private final Consumer<Object> consumer;
+    private final Executor executor;
+    private final int queueSize;
+    private final int frameInterval;
+    private final long minFrameDistance;
+    private final boolean zeroCopy;
+
+    private final Deque<Frame> queue = new ArrayDeque<>();
+    private boolean draining = false;
+    private boolean closed = false;
+    private long nextFrameDue = 0;
+
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder latency = new LongAdder();
+    private volatile long lastDeliveryNanos = System.nanoTime();
+
+    FrameSubscription(String deviceId, Consumer<Object> consumer, Executor executor, int queueSize,
+                      SubscriptionOptions options) {
+        this.deviceId = deviceId;
+        this.consumer = consumer;
+        this.executor = executor;
+        this.queueSize = queueSize;
+        this.frameInterval = Math.max(1, options.getFrameInterval());
+        this.minFrameDistance = options.getMinFrameDistanceNanos();
+        this.zeroCopy = options.isZeroCopy();
+    }
+
+    void offer(Frame frame) {
+        synchronized (this) {
+            if (closed || !wants(frame)) {
+                return;
+            }
+            if (queue.size() >= queueSize) {
+                queue.poll().release();
+                dropped.increment();
+            }
+            queue.add(frame.retain());
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        executor.execute(this::drain);
+    }
+
+    private boolean wants(Frame frame) {
+        if (frame.getSequence() % frameInterval != 0) {
+            return false;
+        }
+        if (minFrameDistance == 0) {
+            return true;
+        }
+
+        long timestamp = frame.getTimestamp();
+        if (nextFrameDue != 0 && timestamp - nextFrameDue < 0) {
+            return false;
+        }
+        // keep the cadence of the frames already sent, unless the stream stalled for a while
+        boolean stalled = nextFrameDue == 0 || timestamp - nextFrameDue > minFrameDistance;
+        nextFrameDue = (stalled ? timestamp : nextFrameDue) + minFrameDistance;
+        return true;
+    }
+
+    /**
+     * Delivers at most a queue worth of frames, then hands the thread over to the other viewers, so a slow viewer
+     * does not keep a thread of the bounded delivery pool to itself.
+     */
+    private void drain() {
+        for (int i = 0; i < queueSize; i++) {
+            Frame frame;
+            synchronized (this) {
+                frame = queue.poll();
+                if (frame == null) {
+                    draining = false;
+                    return;
+                }
+            }
+
+            try {
+                consumer.accept(zeroCopy ? frame : frame.sharedCopy());
+                long now = System.nanoTime();
+                delivered.increment();
+                latency.add(now - frame.getTimestamp());
+                lastDeliveryNanos = now;
+            } catch (Exception e) {
+                log.error("Error delivering frame of device {}", deviceId, e);
+            } finally {
+                frame.release();
+            }
+        }
+        executor.execute(this::drain);
+    }
+
+    boolean isFor(Consumer<Object> consumer) {
+        return this.consumer.equals(consumer);
+    }
+
+    void close() {
+        synchronized (this) {
+            closed = true;
+            queue.forEach(Frame::release);
+            queue.clear();
+        }
+        log.info("Subscription of device {} closed: {} frames delivered, {} dropped, {} ms average latency",
+                deviceId, getDelivered(), getDropped(), getAverageLatencyMillis());
+    }
+
+    /**
+     * @return {@link System#nanoTime()} of the last frame delivered, or of the subscription when none was
+     */
+    public long getLastDeliveryNanos() {
+        return lastDeliveryNanos;
+    }
+
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public double getAverageLatencyMillis() {
+        long count = delivered.sum();
+        return count == 0 ? 0 : (double) latency.sum() / count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
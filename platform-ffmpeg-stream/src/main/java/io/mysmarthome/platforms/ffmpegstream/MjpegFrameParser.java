@@ -0,0 +1,106 @@
+package io.mysmarthome.platforms.ffmpegstream;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Streaming MJPEG demuxer. Bytes are fed in arbitrary chunks, as they come out of the ffmpeg pipe, and every
+ * byte is scanned for the SOI (FFD8) and EOI (FFD9) markers, so a frame boundary is found even when a marker
+ * is split between two reads. Frames are written straight into pooled buffers.
+ */
+@Slf4j
+class MjpegFrameParser {
+
+    private static final byte MARKER = (byte) 0xFF;
+    private static final byte SOI = (byte) 0xD8;
+    private static final byte EOI = (byte) 0xD9;
+    private static final byte[] SOI_BYTES = {MARKER, SOI};
+
+    private final int maxFrameSize;
+    private final FramePool pool;
+    private final FrameListener listener;
+
+    private Frame frame;
+    private long sequence = 0;
+    private boolean discarding = false;
+    private boolean lastWasMarker = false;
+
+    MjpegFrameParser(int maxFrameSize, FramePool pool, FrameListener listener) {
+        this.maxFrameSize = maxFrameSize;
+        this.pool = pool;
+        this.listener = listener;
+    }
+
+    void feed(byte[] buffer, int offset, int length) {
+        int end = offset + length;
+        int chunkStart = offset;
+
+        for (int i = offset; i < end; i++) {
+            byte b = buffer[i];
+            boolean marker = lastWasMarker;
+            lastWasMarker = b == MARKER;
+            if (!marker) {
+                continue;
+            }
+
+            if (b == SOI) {
+                // a new frame starts, whatever was being collected is incomplete
+                startFrame();
+                chunkStart = i + 1;
+            } else if (b == EOI && frame != null) {
+                append(buffer, chunkStart, i + 1);
+                completeFrame();
+                chunkStart = i + 1;
+            }
+        }
+
+        if (frame != null) {
+            append(buffer, chunkStart, end);
+        }
+    }
+
+    void close() {
+        if (frame != null) {
+            frame.release();
+            frame = null;
+        }
+    }
+
+    private void startFrame() {
+        if (frame == null) {
+            frame = pool.acquire();
+        } else {
+            frame.reset();
+        }
+        discarding = false;
+        frame.append(SOI_BYTES, 0, SOI_BYTES.length);
+    }
+
+    private void completeFrame() {
+        Frame completed = frame;
+        frame = null;
+        if (discarding) {
+            completed.release();
+            return;
+        }
+
+        completed.complete(sequence++);
+        try {
+            listener.onFrame(completed);
+        } finally {
+            completed.release();
+        }
+    }
+
+    private void append(byte[] buffer, int from, int to) {
+        int n = to - from;
+        if (discarding || n <= 0) {
+            return;
+        }
+        if (frame.length() + n > maxFrameSize) {
+            log.warn("Dropping frame bigger than {} bytes", maxFrameSize);
+            discarding = true;
+            return;
+        }
+        frame.append(buffer, from, n);
+    }
+}
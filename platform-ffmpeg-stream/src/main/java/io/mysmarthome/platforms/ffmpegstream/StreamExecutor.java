@@ -0,0 +1,107 @@
+package io.mysmarthome.platforms.ffmpegstream;
+
+import io.mysmarthome.platforms.ffmpegcommon.NamedThreadFactory;
+import io.mysmarthome.platforms.ffmpegcommon.StreamHealth;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Runs the frame extractors on a bounded pool of named threads, one per stream, and keeps track of them so
+ * they can be measured and waited for on shutdown.
+ */
+@Slf4j
+public class StreamExecutor {
+
+    private static final String THREAD_PREFIX = "ffmpeg-stream-extractor";
+
+    private final ExecutorService executor;
+    private final Map<String, RunningStream> running = new ConcurrentHashMap<>();
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    public StreamExecutor(int maxStreams) {
+        this.executor = Executors.newFixedThreadPool(maxStreams, new NamedThreadFactory(THREAD_PREFIX));
+    }
+
+    /**
+     * @param onExit called once the extractor returns, whatever the reason
+     */
+    public void submit(String deviceId, FrameExtractor frameExtractor, Runnable onExit) {
+        executor.execute(() -> {
+            Thread thread = Thread.currentThread();
+            String poolName = thread.getName();
+            thread.setName(THREAD_PREFIX + "-" + deviceId);
+            RunningStream stream = new RunningStream(thread, frameExtractor, System.nanoTime());
+            running.put(deviceId, stream);
+            try {
+                frameExtractor.run();
+            } catch (Exception e) {
+                log.error("Frame extractor of device {} failed", deviceId, e);
+            } finally {
+                // a newer extractor of the same device may have started while this one was finishing
+                running.remove(deviceId, stream);
+                thread.setName(poolName);
+                onExit.run();
+            }
+        });
+    }
+
+    public List<StreamMetrics> getMetrics() {
+        return running.entrySet().stream()
+                .map(e -> e.getValue().toMetrics(e.getKey()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Waits for the extractor threads, which must have been asked to stop, to finish.
+     *
+     * @return false when some thread was still running at the deadline
+     */
+    public boolean shutdown(Duration deadline) {
+        executor.shutdown();
+        try {
+            if (executor.awaitTermination(deadline.toMillis(), TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        running.forEach((deviceId, stream) -> log.warn("Extractor thread {} still running after shutdown: {}",
+                stream.thread.getName(), Arrays.toString(stream.thread.getStackTrace())));
+        executor.shutdownNow();
+        return false;
+    }
+
+    @RequiredArgsConstructor
+    private class RunningStream {
+        private final Thread thread;
+        private final FrameExtractor frameExtractor;
+        private final long startedAt;
+
+        StreamMetrics toMetrics(String deviceId) {
+            long cpuTime = threadMXBean.isThreadCpuTimeSupported() ? threadMXBean.getThreadCpuTime(thread.getId()) : -1;
+            StreamHealth health = frameExtractor.getHealth();
+            return new StreamMetrics(
+                    deviceId,
+                    thread.getName(),
+                    cpuTime < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(cpuTime),
+                    frameExtractor.getFramesProcessed(),
+                    TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startedAt),
+                    health.getRestartCount(),
+                    health.getUptimeSeconds(),
+                    health.getLastReconnectMillis());
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package io.mysmarthome.platforms.ffmpegstream;
+
+import lombok.Value;
+
+@Value
+public class StreamMetrics {
+    String deviceId;
+    String threadName;
+    long cpuTimeMillis;
+    long framesProcessed;
+    long uptimeSeconds;
+    int restarts;
+    /**
+     * Since ffmpeg was last (re)started, 0 while it is down.
+     */
+    long processUptimeSeconds;
+    /**
+     * From the exit of ffmpeg to the next one running, -1 when it never restarted.
+     */
+    long lastReconnectMillis;
+}
@@ -0,0 +1,46 @@
+package io.mysmarthome.platforms.ffmpegstream;
+
+import lombok.Builder;
+import lombok.Value;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a viewer wants from the stream. Frames the viewer does not want are skipped before being queued or
+ * copied.
+ */
+@Value
+@Builder
+public class SubscriptionOptions {
+
+    /**
+     * Maximum frames per second delivered, 0 for no limit.
+     */
+    @Builder.Default
+    double maxFps = 0;
+
+    /**
+     * Deliver one frame out of every {@code frameInterval} frames.
+     */
+    @Builder.Default
+    int frameInterval = 1;
+
+    /**
+     * Deliver the pooled {@link Frame} itself rather than a {@code byte[]}. The frame is only valid during the call,
+     * a consumer that keeps it must retain and release it as a {@link FrameListener} does. The consumers of the
+     * platform expect a {@code byte[]}, for them the frame is copied once and the copy shared by all the viewers.
+     */
+    @Builder.Default
+    boolean zeroCopy = false;
+
+    public static SubscriptionOptions of(FfmpegDevice device) {
+        return SubscriptionOptions.builder()
+                .maxFps(device.getMaxFps())
+                .frameInterval(device.getFrameInterval())
+                .build();
+    }
+
+    long getMinFrameDistanceNanos() {
+        return maxFps > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / maxFps) : 0;
+    }
+}
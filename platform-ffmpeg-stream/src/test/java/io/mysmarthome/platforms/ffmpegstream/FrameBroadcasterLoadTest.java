@@ -0,0 +1,103 @@
+package io.mysmarthome.platforms.ffmpegstream;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 50 viewers of one 30 fps camera, one viewer out of ten on a link so slow it takes 100 ms per frame. Prints the
+ * frames delivered, dropped and the average latency of every viewer.
+ */
+@Tag("load")
+class FrameBroadcasterLoadTest {
+
+    private static final int SUBSCRIBERS = 50;
+    private static final int SLOW_EVERY = 10;
+    private static final long SLOW_DELIVERY_MILLIS = 100;
+    private static final int DELIVERY_THREADS = 8;
+    private static final int QUEUE_SIZE = 2;
+    private static final int FPS = 30;
+    private static final int SECONDS = 10;
+    private static final int FRAME_SIZE = 100_000;
+
+    @Test
+    void fiftySubscribers() throws Exception {
+        ExecutorService delivery = Executors.newFixedThreadPool(DELIVERY_THREADS);
+        FrameBroadcaster broadcaster = new FrameBroadcaster("cam", delivery, QUEUE_SIZE);
+        List<FrameSubscription> subscriptions = new ArrayList<>();
+        for (int i = 0; i < SUBSCRIBERS; i++) {
+            subscriptions.add(broadcaster.subscribe(isSlow(i) ? this::slowViewer : frame -> {
+            }, SubscriptionOptions.builder().build()));
+        }
+
+        publish(broadcaster);
+        // let the queues drain before reading the numbers
+        Thread.sleep(QUEUE_SIZE * SLOW_DELIVERY_MILLIS * 2);
+
+        int frames = FPS * SECONDS;
+        System.out.printf("%d subscribers, %d frames of %d bytes at %d fps, %d delivery threads%n",
+                SUBSCRIBERS, frames, FRAME_SIZE, FPS, DELIVERY_THREADS);
+        for (int i = 0; i < SUBSCRIBERS; i++) {
+            FrameSubscription subscription = subscriptions.get(i);
+            System.out.printf("subscriber %2d %-4s delivered %4d dropped %4d average latency %8.3f ms%n", i,
+                    isSlow(i) ? "slow" : "fast", subscription.getDelivered(), subscription.getDropped(),
+                    subscription.getAverageLatencyMillis());
+        }
+        broadcaster.close();
+        delivery.shutdown();
+
+        for (int i = 0; i < SUBSCRIBERS; i++) {
+            FrameSubscription subscription = subscriptions.get(i);
+            assertEquals(frames, subscription.getDelivered() + subscription.getDropped());
+            if (isSlow(i)) {
+                assertTrue(subscription.getDropped() > 0);
+            } else {
+                // the slow viewers must not hold back the others
+                assertTrue(subscription.getDropped() < frames / 100);
+            }
+        }
+    }
+
+    private void publish(FrameBroadcaster broadcaster) {
+        byte[] body = new byte[FRAME_SIZE];
+        new Random(0).nextBytes(body);
+        FramePool pool = new FramePool(8);
+        long period = TimeUnit.SECONDS.toNanos(1) / FPS;
+        long next = System.nanoTime();
+
+        for (int n = 0; n < FPS * SECONDS; n++) {
+            Frame frame = pool.acquire();
+            frame.append(body, 0, body.length);
+            frame.complete(n);
+            try {
+                broadcaster.onFrame(frame);
+            } finally {
+                frame.release();
+            }
+            next += period;
+            LockSupport.parkNanos(next - System.nanoTime());
+        }
+    }
+
+    private void slowViewer(Object frame) {
+        try {
+            Thread.sleep(SLOW_DELIVERY_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static boolean isSlow(int subscriber) {
+        return subscriber % SLOW_EVERY == 0;
+    }
+}
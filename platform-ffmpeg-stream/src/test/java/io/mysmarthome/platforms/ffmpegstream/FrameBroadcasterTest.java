@@ -0,0 +1,211 @@
+package io.mysmarthome.platforms.ffmpegstream;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrameBroadcasterTest {
+
+    private static final SubscriptionOptions ALL_FRAMES = SubscriptionOptions.builder().build();
+
+    private final FramePool pool = new FramePool(4);
+    private final List<Runnable> deliveries = new ArrayList<>();
+    private final FrameBroadcaster broadcaster = new FrameBroadcaster("cam", deliveries::add, 2);
+
+    @Test
+    void everyViewerGetsTheSameCopyOfTheFrame() {
+        List<Object> first = new ArrayList<>();
+        List<Object> second = new ArrayList<>();
+        broadcaster.subscribe(first::add, ALL_FRAMES);
+        broadcaster.subscribe(second::add, ALL_FRAMES);
+
+        publish(frame(0, 1, 2, 3));
+        deliver();
+
+        assertEquals(1, first.size());
+        assertArrayEquals(new byte[]{1, 2, 3}, (byte[]) first.get(0));
+        assertSame(first.get(0), second.get(0));
+    }
+
+    @Test
+    void zeroCopyViewerGetsThePooledFrame() {
+        List<byte[]> read = new ArrayList<>();
+        broadcaster.subscribe(f -> read.add(((Frame) f).toByteArray()),
+                SubscriptionOptions.builder().zeroCopy(true).build());
+        Frame frame = frame(0, 5, 6);
+
+        publish(frame);
+        deliver();
+        broadcaster.clearLatestFrame();
+
+        assertArrayEquals(new byte[]{5, 6}, read.get(0));
+        // released once delivered, the viewer did not keep it
+        assertThrows(IllegalStateException.class, frame::retain);
+    }
+
+    @Test
+    void snapshotSharesTheCopyOfTheViewers() {
+        List<Object> viewer = new ArrayList<>();
+        broadcaster.subscribe(viewer::add, ALL_FRAMES);
+        CompletableFuture<byte[]> next = broadcaster.nextFrame();
+
+        publish(frame(0, 4));
+        deliver();
+
+        assertSame(viewer.get(0), next.join());
+        assertSame(viewer.get(0), broadcaster.getLatestFrame(Long.MAX_VALUE).orElseThrow());
+    }
+
+    @Test
+    void slowViewerLosesTheOldestFrames() {
+        List<Object> viewer = new ArrayList<>();
+        FrameSubscription subscription = broadcaster.subscribe(viewer::add, ALL_FRAMES);
+
+        for (int i = 0; i < 4; i++) {
+            publish(frame(i, i));
+        }
+        deliver();
+
+        assertEquals(2, viewer.size());
+        assertArrayEquals(new byte[]{2}, (byte[]) viewer.get(0));
+        assertArrayEquals(new byte[]{3}, (byte[]) viewer.get(1));
+        assertEquals(2, subscription.getDropped());
+    }
+
+    @Test
+    void frameIsReleasedOnceEveryViewerHadIt() {
+        broadcaster.subscribe(f -> {
+        }, ALL_FRAMES);
+        broadcaster.subscribe(f -> {
+        }, ALL_FRAMES);
+        Frame frame = frame(0, 1);
+
+        publish(frame);
+        deliver();
+        broadcaster.clearLatestFrame();
+
+        assertThrows(IllegalStateException.class, frame::retain);
+    }
+
+    @Test
+    void closeDropsViewersAndQueuedFrames() {
+        List<Object> viewer = new ArrayList<>();
+        broadcaster.subscribe(viewer::add, ALL_FRAMES);
+        Frame frame = frame(0, 1);
+        publish(frame);
+        CompletableFuture<byte[]> next = broadcaster.nextFrame();
+
+        broadcaster.close();
+        deliver();
+
+        assertTrue(viewer.isEmpty());
+        assertTrue(next.isCancelled());
+        assertEquals(0, broadcaster.getSubscribers());
+        assertTrue(broadcaster.unsubscribeUnidentified().isEmpty());
+        assertThrows(IllegalStateException.class, frame::retain);
+    }
+
+    @Test
+    void stopOfAConsumerDetachesOnlyItsViewer() {
+        List<Object> first = new ArrayList<>();
+        List<Object> second = new ArrayList<>();
+        Consumer<Object> firstConsumer = first::add;
+        broadcaster.subscribe(firstConsumer, ALL_FRAMES);
+        FrameSubscription kept = broadcaster.subscribe(second::add, ALL_FRAMES);
+
+        assertEquals(1, broadcaster.unsubscribe(firstConsumer).size());
+        publish(frame(0, 1));
+        deliver();
+
+        assertTrue(first.isEmpty());
+        assertEquals(1, second.size());
+        assertEquals(1, broadcaster.getSubscribers());
+        assertEquals(1, kept.getDelivered());
+    }
+
+    @Test
+    void unidentifiedStopsDetachNobodyUntilEveryViewerLeft() {
+        broadcaster.subscribe(f -> {
+        }, ALL_FRAMES);
+        broadcaster.subscribe(f -> {
+        }, ALL_FRAMES);
+
+        assertTrue(broadcaster.unsubscribeUnidentified().isEmpty());
+        assertEquals(2, broadcaster.getSubscribers());
+        assertEquals(2, broadcaster.unsubscribeUnidentified().size());
+        assertEquals(0, broadcaster.getSubscribers());
+        assertTrue(broadcaster.unsubscribeUnidentified().isEmpty());
+    }
+
+    @Test
+    void identifiedStopSettlesTheUnidentifiedOnes() {
+        Consumer<Object> last = f -> {
+        };
+        broadcaster.subscribe(f -> {
+        }, ALL_FRAMES);
+        broadcaster.subscribe(f -> {
+        }, ALL_FRAMES);
+        broadcaster.subscribe(last, ALL_FRAMES);
+
+        broadcaster.unsubscribeUnidentified();
+        broadcaster.unsubscribeUnidentified();
+
+        // the two unidentified viewers are the two left
+        assertEquals(3, broadcaster.unsubscribe(last).size());
+        assertEquals(0, broadcaster.getSubscribers());
+    }
+
+    @Test
+    void streamIsIdleWithoutRecentDeliveryNorSnapshot() {
+        long minute = TimeUnit.MINUTES.toNanos(1);
+        assertTrue(broadcaster.isIdle(minute));
+
+        CompletableFuture<byte[]> next = broadcaster.nextFrame();
+        assertFalse(broadcaster.isIdle(minute));
+        next.cancel(false);
+
+        broadcaster.subscribe(f -> {
+        }, ALL_FRAMES);
+        assertFalse(broadcaster.isIdle(minute));
+        assertTrue(broadcaster.isIdle(-1));
+    }
+
+    private Frame frame(long sequence, int... body) {
+        Frame frame = pool.acquire();
+        byte[] bytes = new byte[body.length];
+        for (int i = 0; i < body.length; i++) {
+            bytes[i] = (byte) body[i];
+        }
+        frame.append(bytes, 0, bytes.length);
+        frame.complete(sequence);
+        return frame;
+    }
+
+    /**
+     * As the parser does, the frame is only valid during the call.
+     */
+    private void publish(Frame frame) {
+        try {
+            broadcaster.onFrame(frame);
+        } finally {
+            frame.release();
+        }
+    }
+
+    private void deliver() {
+        while (!deliveries.isEmpty()) {
+            deliveries.remove(0).run();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package io.mysmarthome.platforms.ffmpegstream;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Throughput and CPU use of the MJPEG parsing. The stream is a recording of ffmpeg's output given with
+ * {@code -Dmjpeg.recording=<file>}, or 100 generated frames of 50 KB.
+ */
+@Tag("load")
+class FrameExtractorLoadTest {
+
+    private static final int FRAME_SIZE = 50_000;
+    private static final int FRAMES = 100;
+    private static final int CHUNK = 64 * 1024;
+    private static final int CAMERA_FPS = 30;
+    private static final Duration RUN = Duration.ofSeconds(5);
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    @TempDir
+    Path folder;
+
+    @Test
+    void parserThroughput() throws IOException {
+        byte[] stream = recording();
+        AtomicLong frames = new AtomicLong();
+        MjpegFrameParser parser = new MjpegFrameParser(16 * 1024 * 1024, new FramePool(4),
+                frame -> frames.incrementAndGet());
+
+        long bytes = 0;
+        long cpuStart = threads.getCurrentThreadCpuTime();
+        long start = System.nanoTime();
+        long end = start + RUN.toNanos();
+        while (System.nanoTime() - end < 0) {
+            for (int offset = 0; offset < stream.length; offset += CHUNK) {
+                parser.feed(stream, offset, Math.min(CHUNK, stream.length - offset));
+            }
+            bytes += stream.length;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long cpu = threads.getCurrentThreadCpuTime() - cpuStart;
+
+        double framesPerSecond = frames.get() / seconds;
+        double cpuPerFrame = (double) cpu / frames.get();
+        System.out.printf("parser: %.0f frames/s, %.1f MB/s, %.1f us CPU per frame, %.3f%% of a core for a %d fps "
+                        + "camera%n", framesPerSecond, bytes / seconds / 1e6, cpuPerFrame / 1e3,
+                cpuPerFrame * CAMERA_FPS / 1e9 * 100, CAMERA_FPS);
+        assertTrue(framesPerSecond > CAMERA_FPS * 10);
+    }
+
+    /**
+     * The recording is written by a real process, through the pipe, as ffmpeg would.
+     */
+    @Test
+    void extractorThroughputFromAProcess() throws Exception {
+        Path recording = folder.resolve("recording.mjpeg");
+        byte[] stream = recording();
+        Files.write(recording, stream);
+        int expected = countFrames(stream);
+
+        CountDownLatch done = new CountDownLatch(expected);
+        FrameExtractor extractor = new FrameExtractor(List.of("cat", recording.toString()), Duration.ofSeconds(1));
+        extractor.setFrameListener(frame -> done.countDown());
+
+        long[] cpu = new long[1];
+        long start = System.nanoTime();
+        Thread thread = new Thread(() -> {
+            extractor.run();
+            cpu[0] = threads.getCurrentThreadCpuTime();
+        });
+        thread.start();
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        extractor.stop();
+        thread.join();
+
+        System.out.printf("extractor: %d frames of %d bytes in %.3f s, %.0f frames/s, %.1f ms CPU%n", expected,
+                stream.length / expected, seconds, expected / seconds, cpu[0] / 1e6);
+        assertEquals(expected, extractor.getFramesProcessed());
+    }
+
+    /**
+     * A camera that sends nothing: the reads block, the extractor must not spin.
+     */
+    @Test
+    void idleStreamUsesNoCpu() throws Exception {
+        FrameExtractor extractor = new FrameExtractor(List.of("sleep", "60"), Duration.ofSeconds(1));
+        long[] cpu = new long[1];
+        Thread thread = new Thread(() -> {
+            extractor.run();
+            cpu[0] = threads.getCurrentThreadCpuTime();
+        });
+        thread.start();
+        Thread.sleep(RUN.toMillis());
+        extractor.stop();
+        thread.join();
+
+        System.out.printf("idle extractor: %.1f ms CPU in %d s%n", cpu[0] / 1e6, RUN.getSeconds());
+        assertTrue(cpu[0] < RUN.toNanos() / 20);
+    }
+
+    private static byte[] recording() throws IOException {
+        String file = System.getProperty("mjpeg.recording");
+        if (file != null) {
+            return Files.readAllBytes(Path.of(file));
+        }
+
+        Random random = new Random(0);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < FRAMES; i++) {
+            out.write(0xFF);
+            out.write(0xD8);
+            for (int j = 0; j < FRAME_SIZE; j++) {
+                int b = random.nextInt(256);
+                out.write(b);
+                if (b == 0xFF) {
+                    // byte stuffing of the entropy coded data, as in a real jpeg
+                    out.write(0x00);
+                }
+            }
+            out.write(0xFF);
+            out.write(0xD9);
+        }
+        return out.toByteArray();
+    }
+
+    private static int countFrames(byte[] stream) {
+        int frames = 0;
+        for (int i = 1; i < stream.length; i++) {
+            if (stream[i - 1] == (byte) 0xFF && stream[i] == (byte) 0xD9) {
+                frames++;
+            }
+        }
+        return frames;
+    }
+}
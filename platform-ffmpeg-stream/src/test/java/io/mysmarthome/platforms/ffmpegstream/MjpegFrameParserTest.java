@@ -0,0 +1,129 @@
+package io.mysmarthome.platforms.ffmpegstream;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MjpegFrameParserTest {
+
+    private final List<byte[]> frames = new ArrayList<>();
+    private final List<Long> sequences = new ArrayList<>();
+    private final MjpegFrameParser parser = new MjpegFrameParser(1024, new FramePool(2), frame -> {
+        frames.add(frame.toByteArray());
+        sequences.add(frame.getSequence());
+    });
+
+    @Test
+    void parsesFramesOfOneChunk() {
+        byte[] first = jpeg(1, 2, 3);
+        byte[] second = jpeg(4, 5);
+
+        feed(concat(first, second));
+
+        assertEquals(2, frames.size());
+        assertArrayEquals(first, frames.get(0));
+        assertArrayEquals(second, frames.get(1));
+        assertEquals(List.of(0L, 1L), sequences);
+    }
+
+    @Test
+    void findsMarkersSplitBetweenReads() {
+        byte[] first = jpeg(1, 0xFF, 2);
+        byte[] second = jpeg(3);
+        byte[] stream = concat(first, second);
+
+        for (int i = 0; i < stream.length; i++) {
+            parser.feed(stream, i, 1);
+        }
+
+        assertEquals(2, frames.size());
+        assertArrayEquals(first, frames.get(0));
+        assertArrayEquals(second, frames.get(1));
+    }
+
+    @Test
+    void skipsBytesOutsideFrames() {
+        byte[] frame = jpeg(7, 8);
+
+        feed(concat(new byte[]{9, (byte) 0xFF, (byte) 0xD9, 9}, frame, new byte[]{9, 9}));
+
+        assertEquals(1, frames.size());
+        assertArrayEquals(frame, frames.get(0));
+    }
+
+    @Test
+    void restartsOnStartMarkerWithoutEnd() {
+        byte[] truncated = {(byte) 0xFF, (byte) 0xD8, 1, 2};
+        byte[] frame = jpeg(3);
+
+        feed(concat(truncated, frame));
+
+        assertEquals(1, frames.size());
+        assertArrayEquals(frame, frames.get(0));
+    }
+
+    @Test
+    void dropsFramesBiggerThanTheLimit() {
+        byte[] big = jpeg(new byte[2048]);
+        byte[] small = jpeg(1);
+
+        feed(concat(big, small));
+
+        assertEquals(1, frames.size());
+        assertArrayEquals(small, frames.get(0));
+    }
+
+    @Test
+    void parsesFramesBiggerThanThePooledBuffer() {
+        MjpegFrameParser large = new MjpegFrameParser(2_000_000, new FramePool(2), f -> frames.add(f.toByteArray()));
+        byte[] frame = jpeg(new byte[1_000_000]);
+
+        large.feed(frame, 0, frame.length);
+
+        assertEquals(1, frames.size());
+        assertArrayEquals(frame, frames.get(0));
+    }
+
+    @Test
+    void retainedFrameOutlivesTheNextFramesAndClose() {
+        List<Frame> retained = new ArrayList<>();
+        MjpegFrameParser retaining = new MjpegFrameParser(1024, new FramePool(2), f -> retained.add(f.retain()));
+        byte[] stream = concat(jpeg(1), new byte[]{(byte) 0xFF, (byte) 0xD8, 2});
+
+        retaining.feed(stream, 0, stream.length);
+        retaining.close();
+
+        assertEquals(1, retained.size());
+        assertArrayEquals(jpeg(1), retained.get(0).toByteArray());
+        retained.get(0).release();
+    }
+
+    private void feed(byte[] stream) {
+        parser.feed(stream, 0, stream.length);
+    }
+
+    private static byte[] jpeg(int... body) {
+        byte[] bytes = new byte[body.length];
+        for (int i = 0; i < body.length; i++) {
+            bytes[i] = (byte) body[i];
+        }
+        return jpeg(bytes);
+    }
+
+    private static byte[] jpeg(byte[] body) {
+        return concat(new byte[]{(byte) 0xFF, (byte) 0xD8}, body, new byte[]{(byte) 0xFF, (byte) 0xD9});
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.writeBytes(part);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,148 @@
+package io.mysmarthome.platforms.ffmpeg;
+
+import io.mysmarthome.platforms.ffmpegcommon.CommandLine;
+import lombok.Value;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Command of a device, split into arguments once, with its <code>${...}</code> placeholders resolved to
+ * {@link Placeholder}s. Rendering only concatenates, so it can be done on every stream start, and an unknown
+ * placeholder is rejected when the template is compiled.
+ */
+public final class CommandTemplate {
+
+    public enum Placeholder {
+        EXECUTABLE_PATH("executablePath"),
+        URL("url"),
+        PROTOCOL_OPTIONS("protocol_options"),
+        DEVICE_ID("device_id");
+
+        private final String key;
+
+        Placeholder(String key) {
+            this.key = key;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        static Placeholder of(String key) {
+            for (Placeholder placeholder : values()) {
+                if (placeholder.key.equals(key)) {
+                    return placeholder;
+                }
+            }
+            throw new IllegalArgumentException("Unknown placeholder '${" + key + "}'");
+        }
+    }
+
+    private final List<Argument> arguments;
+
+    private CommandTemplate(List<Argument> arguments) {
+        this.arguments = arguments;
+    }
+
+    /**
+     * Splits the command as a shell would, before the placeholders are resolved, so a value with spaces stays a
+     * single argument.
+     */
+    public static CommandTemplate compile(String command) {
+        List<Argument> arguments = new ArrayList<>();
+        for (String arg : CommandLine.split(command)) {
+            arguments.add(Argument.parse(arg));
+        }
+        return new CommandTemplate(arguments);
+    }
+
+    /**
+     * An argument made only of a placeholder becomes as many arguments as the placeholder has values, none when
+     * it has none. Inside a longer argument the values are joined with spaces.
+     *
+     * @param values values of each placeholder, a missing one has no value
+     */
+    public List<String> render(Map<Placeholder, List<String>> values) {
+        List<String> args = new ArrayList<>(arguments.size());
+        for (Argument argument : arguments) {
+            argument.render(values, args);
+        }
+        return Collections.unmodifiableList(args);
+    }
+
+    private static final class Argument {
+
+        private final List<Part> parts;
+
+        private Argument(List<Part> parts) {
+            this.parts = parts;
+        }
+
+        static Argument parse(String arg) {
+            List<Part> parts = new ArrayList<>();
+            int from = 0;
+            int start;
+            while ((start = arg.indexOf("${", from)) >= 0) {
+                int end = arg.indexOf('}', start);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unterminated placeholder in '" + arg + "'");
+                }
+                if (start > from) {
+                    parts.add(new Literal(arg.substring(from, start)));
+                }
+                parts.add(new PlaceholderPart(Placeholder.of(arg.substring(start + 2, end))));
+                from = end + 1;
+            }
+            if (from < arg.length() || parts.isEmpty()) {
+                parts.add(new Literal(arg.substring(from)));
+            }
+            return new Argument(parts);
+        }
+
+        void render(Map<Placeholder, List<String>> values, List<String> args) {
+            if (parts.size() == 1) {
+                args.addAll(parts.get(0).render(values));
+                return;
+            }
+            StringBuilder arg = new StringBuilder();
+            for (Part part : parts) {
+                arg.append(String.join(" ", part.render(values)));
+            }
+            args.add(arg.toString());
+        }
+    }
+
+    /**
+     * Piece of an argument, either text taken as is or a placeholder.
+     */
+    private interface Part {
+
+        /**
+         * @return the values of the part, each one an argument of its own when the part is the whole argument
+         */
+        List<String> render(Map<Placeholder, List<String>> values);
+    }
+
+    @Value
+    private static class Literal implements Part {
+        String text;
+
+        @Override
+        public List<String> render(Map<Placeholder, List<String>> values) {
+            return List.of(text);
+        }
+    }
+
+    @Value
+    private static class PlaceholderPart implements Part {
+        Placeholder placeholder;
+
+        @Override
+        public List<String> render(Map<Placeholder, List<String>> values) {
+            return values.getOrDefault(placeholder, List.of());
+        }
+    }
+}
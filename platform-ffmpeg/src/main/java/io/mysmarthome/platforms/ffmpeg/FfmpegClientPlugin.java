@@ -7,23 +7,31 @@ import io.mysmarthome.platform.PlatformPlugin;
 import io.mysmarthome.platform.message.DeviceHandler;
 import io.mysmarthome.platform.message.OnReceive;
 import io.mysmarthome.platform.message.ReceivedMessage;
+import io.mysmarthome.platforms.ffmpeg.CommandTemplate.Placeholder;
+import io.mysmarthome.platforms.ffmpegcommon.Backoff;
+import io.mysmarthome.platforms.ffmpegcommon.NamedThreadFactory;
+import io.mysmarthome.platforms.ffmpegcommon.ProcessSupervisor;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.io.FileUtils;
 import org.pf4j.Extension;
 import org.pf4j.Plugin;
 import org.pf4j.PluginWrapper;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 @Slf4j
 public class FfmpegClientPlugin extends Plugin {
@@ -36,19 +44,44 @@ public class FfmpegClientPlugin extends Plugin {
     @Extension
     public static class HttpClient implements PlatformPlugin<FfmpegDevice> {
 
+        private static final Duration RESTART_INITIAL_DELAY = Duration.ofSeconds(1);
+        private static final Duration RESTART_MAX_DELAY = Duration.ofSeconds(30);
+        private static final int MAX_STREAMS_PER_CORE = 4;
+
         private final Map<String, DeviceHandler> handlers = new HashMap<>();
+        private final Map<String, SegmentCache> segmentCaches = new ConcurrentHashMap<>();
+        private final Map<String, CommandTemplate> commandTemplates = new ConcurrentHashMap<>();
         private String dataFolder;
         private String executablePath;
         private Monitor monitor;
+        private PlaylistWatcher playlistWatcher;
+        private SegmentJanitor segmentJanitor;
+        private Duration readinessTimeout;
+        private Duration stopTimeout;
+        private int memorySegments;
+        private double segmentTime;
+        private ExecutorService controlExecutor;
+        private ExecutorService segmenterExecutor;
+        private ScheduledExecutorService supervisorScheduler;
 
+        @SneakyThrows
         @Override
         public void start(ApplicationProperties config) {
             dataFolder = config.getString("ffmpeg.dataFolder");
             executablePath = config.getString("ffmpeg.executablePath");
-            int maxConcurrencyExecution = config.getInt("ffmpeg.maxParallelStreams", 1);
+            // with a CPU budget the number of streams adapts to the host, the maximum is only a ceiling
+            int cpuBudget = config.getInt("ffmpeg.cpuBudget", 0);
+            int maxConcurrencyExecution = config.getInt("ffmpeg.maxParallelStreams",
+                    cpuBudget > 0 ? MAX_STREAMS_PER_CORE * Runtime.getRuntime().availableProcessors() : 1);
             int inactivityTimeout = config.getInt("ffmpeg.inactivityTimeout", 8);
+            stopTimeout = Duration.ofSeconds(config.getInt("ffmpeg.stopTimeout", 5));
+            readinessTimeout = Duration.ofSeconds(config.getInt("ffmpeg.readinessTimeout", 40));
+            memorySegments = config.getInt("ffmpeg.memorySegments", 5);
+            segmentTime = config.getInt("ffmpeg.segmentTime", 2);
 
-            monitor = new Monitor(maxConcurrencyExecution, inactivityTimeout);
+            Duration admissionTimeout = Duration.ofSeconds(config.getInt("ffmpeg.admissionTimeout", 10));
+
+            monitor = new Monitor(maxConcurrencyExecution, inactivityTimeout, admissionTimeout);
             monitor.setOnStopListener(device -> {
                 // just notify that the stream is stopped
                 Map<String, Object> result = new HashMap<>();
@@ -61,13 +94,35 @@ public class FfmpegClientPlugin extends Plugin {
                 if (handlers.containsKey(device.getDeviceId())) {
                     handlers.get(device.getDeviceId()).broadcastMessage(message);
                 }
+                streamStopped(device);
             });
+            if (cpuBudget > 0) {
+                // until a stream was measured, each one is assumed to take a whole core
+                monitor.enableCpuBudget(cpuBudget, config.getInt("ffmpeg.initialStreamCost",
+                        100 / Runtime.getRuntime().availableProcessors()));
+            }
             monitor.start();
+
+            Duration cleanupInterval = Duration.ofSeconds(config.getInt("ffmpeg.cleanupInterval", 2));
+            segmentJanitor = new SegmentJanitor(Paths.get(dataFolder), cleanupInterval);
+            segmentJanitor.start();
+
+            playlistWatcher = new PlaylistWatcher();
+            playlistWatcher.start();
+
+            controlExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("ffmpeg-control"));
+            segmenterExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("ffmpeg-segmenter"));
+            supervisorScheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("ffmpeg-supervisor"));
         }
 
         @Override
         public void shutdown() {
+            controlExecutor.shutdownNow();
+            segmenterExecutor.shutdownNow();
+            supervisorScheduler.shutdownNow();
             monitor.stop();
+            playlistWatcher.stop();
+            segmentJanitor.stop();
         }
 
         @SneakyThrows
@@ -80,6 +135,17 @@ public class FfmpegClientPlugin extends Plugin {
                     .build());
 
             Files.createDirectories(Paths.get(dataFolder, device.getDeviceId()));
+
+            // fails on a malformed rendition now rather than when the stream is started
+            List<Rendition> renditions = device.getRenditions();
+            if (!renditions.isEmpty() && device.isInMemory()) {
+                log.warn("Renditions of device '{}' are ignored, they are only written to disk", device.getDeviceId());
+            }
+
+            // likewise for an unknown placeholder or a malformed url, starting the stream only renders the template
+            CommandTemplate template = CommandTemplate.compile(device.getCommand());
+            prepareCommand(device, template);
+            commandTemplates.put(device.getDeviceId(), template);
         }
 
         @Override
@@ -92,16 +158,18 @@ public class FfmpegClientPlugin extends Plugin {
         public CompletableFuture<Optional<ReceivedMessage>> onSend(FfmpegDevice device, Object payload) {
             Map<String, Object> request = (Map<String, Object>) payload;
 
-            final boolean needToSendMessage;
+            // start and stop run on the control executor, the caller is never blocked
+            final CompletableFuture<Boolean> action;
             if (isToStartStreaming(request)) {
-                needToSendMessage = startStreaming(device);
+                action = CompletableFuture.supplyAsync(() -> startStreaming(device), controlExecutor)
+                        .thenCompose(Function.identity());
             } else if (isToStopStreaming(request)) {
-                needToSendMessage = stopStreaming(device);
+                action = CompletableFuture.supplyAsync(() -> stopStreaming(device), controlExecutor);
             } else {
                 throw new UnsupportedOperationException();
             }
 
-            return CompletableFuture.supplyAsync(() -> {
+            return action.thenApply(needToSendMessage -> {
                 ReceivedMessage message = ReceivedMessage.builder()
                         .message(request)
                         .build();
@@ -127,17 +195,39 @@ public class FfmpegClientPlugin extends Plugin {
             monitor.keepAlive(device);
 
             File original = Paths.get(dataFolder, device.getDeviceId(), path).toFile();
-            try {
+            if (device.isInMemory()) {
+                return downloadFromMemory(device, path, original);
+            }
+            // viewers of the same stream share one copy of each segment, and no file is left open
+            Optional<byte[]> data = segmentCaches
+                    .computeIfAbsent(device.getDeviceId(), id -> new SegmentCache(Paths.get(dataFolder, id)))
+                    .get(path);
+            if (data.isEmpty()) {
+                log.error("File '{}' does not exists", original.getAbsoluteFile());
                 return DownloadDetails.builder()
                         .file(original)
-                        .fileSstream(new FileInputStream(original.getAbsoluteFile()))
                         .build();
-            } catch (FileNotFoundException e) {
-                log.error("File '{}' does not exists", original.getAbsoluteFile(), e);
+            }
+            return DownloadDetails.builder()
+                    .file(original)
+                    .fileSstream(new ByteArrayInputStream(data.get()))
+                    .build();
+        }
+
+        private DownloadDetails downloadFromMemory(FfmpegDevice device, String path, File original) {
+            Optional<byte[]> data = monitor.getSession(device)
+                    .flatMap(StreamSession::getSegmentStore)
+                    .flatMap(store -> store.get(path));
+            if (data.isEmpty()) {
+                log.error("Segment '{}' of device {} is not in memory", path, device.getDeviceId());
                 return DownloadDetails.builder()
                         .file(original)
                         .build();
             }
+            return DownloadDetails.builder()
+                    .file(original)
+                    .fileSstream(new ByteArrayInputStream(data.get()))
+                    .build();
         }
 
         @Override
@@ -145,93 +235,104 @@ public class FfmpegClientPlugin extends Plugin {
             return "ffmpeg";
         }
 
-        @SneakyThrows
-        private boolean stopStreaming(Device device) {
-            monitor.stopStream(device);
-            if (monitor.alreadyStreaming(device)) {
+        private boolean stopStreaming(FfmpegDevice device) {
+            if (!monitor.stopStream(device)) {
                 return false;
             }
-            cleanDirectory(device);
+            streamStopped(device);
             return true;
         }
 
-        @SneakyThrows
-        private void cleanDirectory(Device device) {
-            log.info("Starting cleaning folder for device {}", device.getDeviceId());
+        private void streamStopped(Device device) {
             Path folder = Paths.get(dataFolder, device.getDeviceId());
-            FileUtils.cleanDirectory(folder.toFile());
-            RetryExecutor.builder()
-                    .task(() -> Objects.requireNonNull(folder.toFile().listFiles()).length == 0)
-                    .maxRetries(5)
-                    .interval(1)
-                    .intervalUnit(TimeUnit.SECONDS)
-                    .start();
-            log.info("Folder cleaned for device {}", device.getDeviceId());
+            clearSegmentCache(device);
+            segmentJanitor.streamStopped(folder);
+            playlistWatcher.unwatch(folder);
         }
 
-        @SneakyThrows
-        private boolean startStreaming(FfmpegDevice device) {
-            if (monitor.alreadyStreaming(device)) {
-                monitor.addStream(device);
-                return false;
-            }
-            if (monitor.cannotStream(device)) {
-                throw new IllegalMonitorStateException("Cannot start streaming");
+        private void clearSegmentCache(Device device) {
+            SegmentCache cache = segmentCaches.remove(device.getDeviceId());
+            if (cache != null) {
+                cache.clear();
             }
+        }
+
+        private CompletableFuture<Boolean> startStreaming(FfmpegDevice device) {
+            // the launcher runs under the lock of the device, concurrent requests wait for it and join the
+            // stream, then all of them complete when the first segment is written
+            return monitor.startStream(device, device.getPriority(), () -> launch(device))
+                    .whenComplete((started, e) -> {
+                        if (e != null) {
+                            log.error("Stream for device {} did not start", device.getDeviceId(), e);
+                        } else if (started) {
+                            log.info("Stream started for device {}", device.getDeviceId());
+                        }
+                    });
+        }
 
-            // FIXME quando ha dois pedidos ao mesmo tempo, o segundo deve bloqueat ate que o primeiro seja processado
-            cleanDirectory(device);
-            String command = prepareCommand(device);
+        @SneakyThrows
+        private StreamSession launch(FfmpegDevice device) {
+            List<String> command = prepareCommand(device, commandTemplates.computeIfAbsent(device.getDeviceId(),
+                    id -> CommandTemplate.compile(device.getCommand())));
             log.info("Executing command : {}", command);
 
+            Path folder = Paths.get(dataFolder, device.getDeviceId());
             ProcessBuilder processBuilder = new ProcessBuilder();
-            processBuilder.command("/bin/bash", "-l", "-c", command);
-            processBuilder.directory(Paths.get(dataFolder, device.getDeviceId()).toFile());
-            Process process = processBuilder.start();
-
-            monitor.addStream(device, process);
+            processBuilder.command(command);
+
+            // restarted after a backoff when ffmpeg dies, as long as someone still watches the stream
+            ProcessSupervisor supervisor = new ProcessSupervisor(device.getDeviceId(), processBuilder::start,
+                    () -> monitor.alreadyStreaming(device), supervisorScheduler,
+                    new Backoff(RESTART_INITIAL_DELAY, RESTART_MAX_DELAY), stopTimeout);
+
+            if (device.isInMemory()) {
+                MemorySegmentStore store = new MemorySegmentStore(memorySegments);
+                // every new process gets its own segmenter, the segments keep going into the same store
+                supervisor.setOnLaunch(process -> segmenterExecutor.execute(
+                        new TsSegmenter(device.getDeviceId(), process.getInputStream(), store, segmentTime)));
+                supervisor.start();
+                CompletableFuture<Void> ready = store.getFirstSegment()
+                        .orTimeout(readinessTimeout.toMillis(), TimeUnit.MILLISECONDS);
+                return new StreamSession(supervisor, ready, store);
+            }
 
-            // wait until have some files in the directory
-            Path folder = Paths.get(dataFolder, device.getDeviceId());
+            segmentJanitor.streamStarted(folder);
+            processBuilder.directory(folder.toFile());
+            CompletableFuture<Void> ready = playlistWatcher.awaitFirstSegment(folder, readinessTimeout);
+            // nobody reads the output, do not let ffmpeg block on a full pipe
+            processBuilder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
             try {
-                RetryExecutor.builder()
-                        .task(() -> Arrays.stream(Objects.requireNonNull(folder.toFile().listFiles()))
-                                .filter(f -> f.getName().endsWith(".ts") || f.getName().endsWith(".m3u8"))// TODO talvez alterar isso para verificar mesmo se existe os dois ficheiros
-                                .count() >= 2)
-                        .maxRetries(20) // TODO fazer disto uma configuracao
-                        .interval(2) // TODO fazer disto uma configuracao
-                        .intervalUnit(TimeUnit.SECONDS)
-                        .start();
+                supervisor.start();
+                return new StreamSession(supervisor, ready, null);
             } catch (Exception e) {
-                monitor.stopStream(device);
+                ready.cancel(false);
                 throw e;
             }
-            log.info("Stream started for device {}", device.getDeviceId());
-            return true;
         }
 
         @SneakyThrows
-        private String prepareCommand(FfmpegDevice device) {
+        private List<String> prepareCommand(FfmpegDevice device, CommandTemplate template) {
             String url = device.getUrl();
             String protocol = new URI(url).getScheme();
 
-            return device.getCommand()
-                    .replace("${executablePath}", executablePath)
-                    .replace("${url}", device.getUrl())
-                    .replace("${protocol_options}", getProtocolOptions(protocol))
-                    .replaceAll("\\$\\{device_id}", device.getDeviceId());
+            Map<Placeholder, List<String>> values = new EnumMap<>(Placeholder.class);
+            values.put(Placeholder.EXECUTABLE_PATH, List.of(executablePath));
+            values.put(Placeholder.URL, List.of(url));
+            values.put(Placeholder.PROTOCOL_OPTIONS, getProtocolOptions(protocol));
+            values.put(Placeholder.DEVICE_ID, List.of(device.getDeviceId()));
+            return template.render(values);
         }
 
-        private String getProtocolOptions(String protocol) {
+        private List<String> getProtocolOptions(String protocol) {
             if (protocol == null) {
-                return "";
+                return List.of();
             }
 
             switch (protocol.toLowerCase(Locale.ROOT)) {
                 case "rtsp":
-                    return "-rtsp_transport tcp";
+                    return List.of("-rtsp_transport", "tcp");
                 default:
-                    return "";
+                    return List.of();
             }
         }
     }
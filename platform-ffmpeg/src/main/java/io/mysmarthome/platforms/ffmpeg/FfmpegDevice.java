@@ -7,7 +7,9 @@ import lombok.SneakyThrows;
 
 import java.net.URI;
 import java.nio.file.Paths;
+import java.util.List;
 import java.util.Locale;
+import java.util.StringJoiner;
 
 @RequiredArgsConstructor
 public class FfmpegDevice implements Device {
@@ -32,6 +34,43 @@ public class FfmpegDevice implements Device {
             //" -segment_list_entry_prefix '' " +
             "  %3d.ts ";
 
+    /**
+     * Command used when the segments are kept in memory, ffmpeg must write MPEG-TS to its standard output.
+     */
+    private static final String MEMORY_COMMAND = "" +
+            " ${executablePath} -fflags nobuffer " +
+            " ${protocol_options} " +
+            " -i  ${url} " +
+            " -vsync 0 " +
+            " -copyts " +
+            " -vcodec copy " +
+            " -an " +
+            " -f mpegts " +
+            " pipe:1 ";
+
+    /**
+     * Start of the command used with renditions: the stream is decoded once, then split and scaled for each of
+     * them. The key frames are forced on the segment boundaries, so the variants can be switched at any segment.
+     */
+    private static final String RENDITIONS_COMMAND = "" +
+            " ${executablePath} -fflags nobuffer " +
+            " ${protocol_options} " +
+            " -i  ${url} " +
+            " -an " +
+            " -c:v libx264 -preset veryfast -tune zerolatency " +
+            " -force_key_frames expr:gte(t,n_forced*2) ";
+
+    /**
+     * End of the command used with renditions, ffmpeg writes a playlist per variant and the master playlist.
+     */
+    private static final String RENDITIONS_OUTPUT = "" +
+            " -f hls " +
+            " -hls_time 2 " +
+            " -hls_list_size 5 " +
+            " -hls_flags delete_segments+independent_segments " +
+            " -master_pl_name index.m3u8 " +
+            " -hls_segment_filename stream_%v_%03d.ts ";
+
 //    private static final String RTSP_OPTIONS = "-rtsp_transport tcp";
 
     private final Device device;
@@ -56,17 +95,68 @@ public class FfmpegDevice implements Device {
         return getCustomInfo("url").asString();
     }
 
+    /**
+     * @return priority of the stream when the slots are all taken, a higher one may preempt a lower one
+     */
+    public int getPriority() {
+        return Integer.parseInt(getCustomInfo("priority").asString("0"));
+    }
+
+    /**
+     * @return true when the segments of this device are kept in memory instead of being written to disk
+     */
+    public boolean isInMemory() {
+        return "memory".equalsIgnoreCase(getCustomInfo("storage").asString("disk"));
+    }
+
+    /**
+     * @return the variants written besides each other, empty when the stream is only remuxed
+     */
+    public List<Rendition> getRenditions() {
+        return Rendition.parseAll(getCustomInfo("renditions").asString(""));
+    }
+
     @SneakyThrows
     public String getCommand() {
 //        String url = getUrl();
 //        String protocol = new URI(url).getScheme();
-        return getCustomInfo("command").asString(COMMAND);
+        if (isInMemory()) {
+            return getCustomInfo("command").asString(MEMORY_COMMAND);
+        }
+        List<Rendition> renditions = getRenditions();
+        return getCustomInfo("command").asString(renditions.isEmpty() ? COMMAND : buildRenditionsCommand(renditions));
 //                .replace("${url}", url)
 //                .replace("${protocol_options}", getProtocolOptions(protocol))
 //                .replaceAll("\\$\\{device_id}", Paths.get(baseDir, getDeviceId()).toString());
     }
 
 
+    private static String buildRenditionsCommand(List<Rendition> renditions) {
+        StringBuilder filter = new StringBuilder("[0:v]split=").append(renditions.size());
+        for (int i = 0; i < renditions.size(); i++) {
+            filter.append("[s").append(i).append(']');
+        }
+        StringBuilder maps = new StringBuilder();
+        StringJoiner streamMap = new StringJoiner(" ", "\"", "\"");
+        for (int i = 0; i < renditions.size(); i++) {
+            Rendition r = renditions.get(i);
+            filter.append(";[s").append(i).append("]scale=").append(r.getWidth()).append(':').append(r.getHeight())
+                    .append("[v").append(i).append(']');
+            maps.append(" -map [v").append(i).append(']')
+                    .append(" -b:v:").append(i).append(' ').append(r.getBitrate())
+                    .append(" -maxrate:v:").append(i).append(' ').append(r.getBitrate())
+                    .append(" -bufsize:v:").append(i).append(' ').append(r.getBitrate());
+            streamMap.add("v:" + i);
+        }
+
+        return RENDITIONS_COMMAND +
+                " -filter_complex " + filter +
+                maps +
+                RENDITIONS_OUTPUT +
+                " -var_stream_map " + streamMap +
+                " stream_%v.m3u8 ";
+    }
+
 //    private String getProtocolOptions(String protocol) {
 //        if (protocol == null) {
 //            return "";
@@ -0,0 +1,99 @@
+package io.mysmarthome.platforms.ffmpeg;
+
+import lombok.Value;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Keeps the last segments of a stream in memory, with the live playlist that lists them. Readers get an
+ * immutable snapshot, so serving a segment never waits for the segmenter.
+ */
+public class MemorySegmentStore {
+
+    public static final String PLAYLIST = "index.m3u8";
+
+    private final int maxSegments;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final CompletableFuture<Void> firstSegment = new CompletableFuture<>();
+    private long sequence = 0;
+    // number of discontinuities that left the playlist with their segment
+    private long discontinuitySequence = 0;
+    private boolean discontinuity = false;
+    private volatile Map<String, byte[]> files = Map.of();
+
+    public MemorySegmentStore(int maxSegments) {
+        this.maxSegments = maxSegments;
+    }
+
+    public Optional<byte[]> get(String name) {
+        return Optional.ofNullable(files.get(name));
+    }
+
+    /**
+     * @return completes when the first segment is available
+     */
+    public CompletableFuture<Void> getFirstSegment() {
+        return firstSegment;
+    }
+
+    /**
+     * The next segment comes from a new ffmpeg process, its timestamps and continuity counters start over and the
+     * players must be told so. Nothing to tell before the first segment.
+     */
+    synchronized void discontinuity() {
+        discontinuity = sequence > 0;
+    }
+
+    synchronized void add(byte[] data, double duration) {
+        segments.addLast(new Segment(sequence + ".ts", sequence, data, duration, discontinuity));
+        sequence++;
+        discontinuity = false;
+        if (segments.size() > maxSegments && segments.removeFirst().isDiscontinuity()) {
+            discontinuitySequence++;
+        }
+
+        Map<String, byte[]> snapshot = new HashMap<>();
+        segments.forEach(s -> snapshot.put(s.getName(), s.getData()));
+        snapshot.put(PLAYLIST, buildPlaylist());
+        files = snapshot;
+
+        firstSegment.complete(null);
+    }
+
+    private byte[] buildPlaylist() {
+        double maxDuration = segments.stream().mapToDouble(Segment::getDuration).max().orElse(0);
+
+        StringBuilder playlist = new StringBuilder()
+                .append("#EXTM3U\n")
+                .append("#EXT-X-VERSION:3\n")
+                .append("#EXT-X-TARGETDURATION:").append((long) Math.ceil(maxDuration)).append('\n')
+                .append("#EXT-X-MEDIA-SEQUENCE:").append(segments.getFirst().getSequence()).append('\n');
+        if (discontinuitySequence > 0) {
+            playlist.append("#EXT-X-DISCONTINUITY-SEQUENCE:").append(discontinuitySequence).append('\n');
+        }
+        for (Segment s : segments) {
+            if (s.isDiscontinuity()) {
+                playlist.append("#EXT-X-DISCONTINUITY\n");
+            }
+            playlist.append(String.format(Locale.ROOT, "#EXTINF:%.3f,\n", s.getDuration()))
+                    .append(s.getName()).append('\n');
+        }
+        return playlist.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Value
+    private static class Segment {
+        String name;
+        long sequence;
+        byte[] data;
+        double duration;
+        boolean discontinuity;
+    }
+}
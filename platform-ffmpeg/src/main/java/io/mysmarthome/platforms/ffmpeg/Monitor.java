@@ -1,109 +1,207 @@
 package io.mysmarthome.platforms.ffmpeg;
 
 import io.mysmarthome.device.Device;
+import io.mysmarthome.platforms.ffmpegcommon.CpuLimiter;
+import io.mysmarthome.platforms.ffmpegcommon.NamedThreadFactory;
+import io.mysmarthome.platforms.ffmpegcommon.StreamHealth;
+import io.mysmarthome.platforms.ffmpegcommon.StreamRegistry;
+import io.mysmarthome.platforms.ffmpegcommon.StreamRegistry.Acquisition;
+import io.mysmarthome.platforms.ffmpegcommon.StreamRegistry.Lease;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 
-import java.time.Instant;
-import java.time.temporal.ChronoUnit;
-import java.util.Iterator;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
-
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps track of the running streams and stops the ones nobody asked for during the inactivity timeout. Each
+ * stream has its own deadline on the scheduler, so nothing runs while there are no streams. A keep alive only
+ * updates the last request, and the deadline is pushed forward when it fires early.
+ */
 @Slf4j
 public class Monitor {
 
-    private static final long SCHEDULER_PERIOD = 1L; // in seconds
+    private static final Duration CPU_SAMPLING_INTERVAL = Duration.ofSeconds(2);
 
-    private final int maxParallelStreams;
-    private final int inactivityTimeout;
-    private ScheduledFuture<?> scheduledFuture;
-    private final Map<String, MonitoredProcess> activeStreams = new ConcurrentHashMap<>();
+    private final Duration inactivityTimeout;
+    private final Duration admissionTimeout;
+    private final ExecutorService admissionExecutor;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final ExecutorService listenerExecutor;
+    private final StreamRegistry<MonitoredProcess> activeStreams;
+    private CpuLimiter cpuLimiter;
     private Consumer<Device> onStopListener = d -> {
     };
 
-    public Monitor(int maxAllowedParallelStreams, int inactivityTimeout) {
-        this.maxParallelStreams = maxAllowedParallelStreams;
-        this.inactivityTimeout = inactivityTimeout;
+    public Monitor(int maxAllowedParallelStreams, int inactivityTimeout, Duration admissionTimeout) {
+        this.activeStreams = new StreamRegistry<>(maxAllowedParallelStreams);
+        this.activeStreams.getAdmission().setPreemptor(this::preempt);
+        this.inactivityTimeout = Duration.ofSeconds(inactivityTimeout);
+        this.admissionTimeout = admissionTimeout;
+        this.admissionExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("ffmpeg-admission"));
+        this.scheduler = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("ffmpeg-monitor"));
+        this.scheduler.setRemoveOnCancelPolicy(true);
+        // a slow listener must not delay the expiry of the other streams
+        this.listenerExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("ffmpeg-monitor-listener"));
     }
 
     public void start() {
-        scheduledFuture = Executors
-                .newSingleThreadScheduledExecutor()
-                .scheduleAtFixedRate(
-                        monitoringProcesses(),
-                        0L,
-                        SCHEDULER_PERIOD,
-                        TimeUnit.SECONDS);
+        log.info("Running monitoring ...");
     }
 
-    private Runnable monitoringProcesses() {
-        log.info("Running monitoring ...");
-        return () -> {
+    private void scheduleExpiry(MonitoredProcess p, Duration delay) {
+        p.setExpiry(scheduler.schedule(() -> expire(p), delay.toMillis(), TimeUnit.MILLISECONDS));
+    }
 
-            Iterator<MonitoredProcess> i = activeStreams.values().iterator();
-            while (i.hasNext()) {
-                MonitoredProcess p = i.next();
-                if (isAliveProcess(p.getLastRequest())) {
-                    continue;
-                }
+    private void expire(MonitoredProcess p) {
+        long remaining = inactivityTimeout.toNanos() - (System.nanoTime() - p.getLastRequestNanos());
+        if (remaining > 0) {
+            // there were requests since it was scheduled
+            scheduleExpiry(p, Duration.ofNanos(remaining));
+            return;
+        }
 
-                log.info("Kill stream for {}", p.getDevice().getDeviceId());
-                p.getProcess().destroy();
-                this.onStopListener.accept(p.getDevice());
+        if (activeStreams.remove(p.getDevice().getDeviceId(), p, this::kill)) {
+            log.info("Kill stream for {}", p.getDevice().getDeviceId());
+            listenerExecutor.execute(() -> onStopListener.accept(p.getDevice()));
+        }
+    }
 
-                i.remove();
-            }
-        };
+    public Optional<StreamSession> getSession(Device device) {
+        return activeStreams.get(device.getDeviceId())
+                .map(MonitoredProcess::getSession);
     }
 
-    private boolean isAliveProcess(Instant lastUpdate) {
-        Instant now = Instant.now();
-        return ChronoUnit.SECONDS.between(lastUpdate, now) < inactivityTimeout;
+    /**
+     * @return restarts, uptime and reconnection time of the running streams, by device id
+     */
+    public Map<String, StreamHealth> getHealth() {
+        return activeStreams.getAll().stream()
+                .collect(Collectors.toMap(p -> p.getDevice().getDeviceId(),
+                        p -> p.getSession().getSupervisor().getHealth()));
     }
 
-    public void keepAlive(Device device) {
-        if (activeStreams.containsKey(device.getDeviceId())) {
-            activeStreams.get(device.getDeviceId()).setLastRequest(Instant.now());
-        }
+    /**
+     * Admits new streams only while the host has CPU left, the maximum of parallel streams is then a ceiling.
+     *
+     * @param budget            percentage of the whole host the streams may use
+     * @param initialStreamCost percentage of the host a stream is assumed to use until one was measured
+     */
+    public void enableCpuBudget(double budget, double initialStreamCost) {
+        cpuLimiter = new CpuLimiter(budget, initialStreamCost, CPU_SAMPLING_INTERVAL, this::getProcesses,
+                activeStreams.getAdmission());
+        cpuLimiter.start();
+    }
+
+    /**
+     * @return CPU used by each stream, in percent of the host, empty when there is no CPU budget
+     */
+    public Map<String, Double> getStreamCosts() {
+        return cpuLimiter == null ? Map.of() : cpuLimiter.getStreamCosts();
     }
 
-    public void addStream(Device device) {
-        if (activeStreams.containsKey(device.getDeviceId())) {
-            activeStreams.get(device.getDeviceId()).addUser();
+    private Map<String, ProcessHandle> getProcesses() {
+        Map<String, ProcessHandle> processes = new HashMap<>();
+        for (MonitoredProcess p : activeStreams.getAll()) {
+            Process process = p.getSession().getSupervisor().getProcess();
+            if (process != null) {
+                processes.put(p.getDevice().getDeviceId(), process.toHandle());
+            }
         }
+        return processes;
     }
 
-    public void addStream(Device device, Process process) {
-        if (activeStreams.containsKey(device.getDeviceId())) {
-            activeStreams.get(device.getDeviceId()).addUser();
-            return;
+    /**
+     * Called on every download, so it is a single lookup and a volatile write, without locking or allocating.
+     */
+    public void keepAlive(Device device) {
+        MonitoredProcess p = activeStreams.find(device.getDeviceId());
+        if (p != null) {
+            p.setLastRequestNanos(System.nanoTime());
         }
-        if (cannotStream(device)) {
-            throw new IllegalMonitorStateException("Maximum stream allowed in parallel reached");
+    }
+
+    /**
+     * Joins the stream of the device, or starts it with the given launcher. When all the slots are taken the
+     * request waits for one, up to the admission timeout, and may preempt an idle stream of lower priority. The
+     * returned future completes once the stream is ready, with true when this call started it. When the stream
+     * does not get ready the user is removed again.
+     */
+    public CompletableFuture<Boolean> startStream(Device device, int priority, Supplier<StreamSession> launcher) {
+        Function<String, MonitoredProcess> starter = id -> new MonitoredProcess(device, priority, launcher.get());
+        Lease<MonitoredProcess> lease = activeStreams.acquire(device.getDeviceId(), starter);
+        if (lease.getAcquisition() != Acquisition.REJECTED) {
+            return awaitReady(device, lease);
         }
 
-        activeStreams.put(device.getDeviceId(), new MonitoredProcess(device, process));
+        log.info("No slot free for device {}, waiting for one", device.getDeviceId());
+        return activeStreams.getAdmission().acquire(priority, admissionTimeout)
+                .exceptionally(e -> {
+                    throw new IllegalMonitorStateException("Maximum stream allowed in parallel reached");
+                })
+                // the slot is handed over by whoever released it, do not launch ffmpeg on that thread
+                .thenComposeAsync(r -> awaitReady(device,
+                        activeStreams.acquire(device.getDeviceId(), starter, true)), admissionExecutor);
     }
 
-    public void stopStream(Device device) {
-        if (!activeStreams.containsKey(device.getDeviceId())) {
-            // already streaming, nothing to do
-            return;
+    private CompletableFuture<Boolean> awaitReady(Device device, Lease<MonitoredProcess> lease) {
+        boolean started = lease.getAcquisition() == Acquisition.STARTED;
+        if (started) {
+            scheduleExpiry(lease.getHandle(), inactivityTimeout);
         }
+        return lease.getHandle().getSession().getReady()
+                .whenComplete((r, e) -> {
+                    // cancelled means the stream was already stopped, with all its users
+                    if (e != null && !(unwrap(e) instanceof CancellationException)) {
+                        stopStream(device);
+                    }
+                })
+                .thenApply(r -> started);
+    }
 
-        activeStreams.get(device.getDeviceId()).removeUser();
-        if (activeStreams.get(device.getDeviceId()).hasUsers()) {
-            return;
+    /**
+     * Stops the least recently viewed stream with a lower priority, if it is idle: nobody asked for it during
+     * half the inactivity timeout.
+     */
+    private boolean preempt(int priority) {
+        long idleSince = System.nanoTime() - inactivityTimeout.toNanos() / 2;
+        Optional<MonitoredProcess> victim = activeStreams.getAll().stream()
+                .filter(p -> p.getPriority() < priority)
+                .filter(p -> p.getLastRequestNanos() - idleSince <= 0)
+                .min(Comparator.comparingLong(MonitoredProcess::getLastRequestNanos));
+        if (victim.isEmpty()) {
+            return false;
         }
 
-        MonitoredProcess p = activeStreams.remove(device.getDeviceId());
-        p.getProcess().destroy();
-//        this.onStopListener.accept(device);
+        MonitoredProcess p = victim.get();
+        if (!activeStreams.remove(p.getDevice().getDeviceId(), p, this::kill)) {
+            return false;
+        }
+        log.info("Preempt stream for {}", p.getDevice().getDeviceId());
+        listenerExecutor.execute(() -> onStopListener.accept(p.getDevice()));
+        return true;
+    }
+
+    /**
+     * @return true when the last user left and the process was stopped
+     */
+    public boolean stopStream(Device device) {
+        return activeStreams.release(device.getDeviceId(), this::kill);
     }
 
     public void setOnStopListener(Consumer<Device> onStopListener) {
@@ -111,25 +209,32 @@ public class Monitor {
     }
 
     public boolean alreadyStreaming(Device device) {
-        return activeStreams.containsKey(device.getDeviceId());
+        return activeStreams.isActive(device.getDeviceId());
     }
 
-    public boolean cannotStream(Device device) {
-        if (alreadyStreaming(device)) {
-            return false;
+    public void stop() {
+        if (!scheduler.isShutdown()) {
+            scheduler.shutdownNow();
+            listenerExecutor.shutdown();
+            admissionExecutor.shutdownNow();
+            if (cpuLimiter != null) {
+                cpuLimiter.stop();
+            }
+            activeStreams.removeAll(this::kill);
         }
-        return activeStreams.size() >= maxParallelStreams;
     }
 
-    public void stop() {
-        if (isRunning()) {
-            scheduledFuture.cancel(true);
-            activeStreams.values().forEach(p -> p.getProcess().destroy());
+    private void kill(MonitoredProcess p) {
+        ScheduledFuture<?> expiry = p.getExpiry();
+        if (expiry != null) {
+            expiry.cancel(false);
         }
+        p.getSession().getReady().cancel(false);
+        p.getSession().getSupervisor().stop();
     }
 
-    private boolean isRunning() {
-        return !scheduledFuture.isCancelled() && !scheduledFuture.isDone();
+    private static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
     }
 
     @Data
@@ -137,28 +242,19 @@ public class Monitor {
 
         private final Device device;
 
-        private final Process process;
+        private final int priority;
 
-        private Instant lastRequest;
+        private final StreamSession session;
 
-        private int users = 1;
+        private volatile long lastRequestNanos;
 
-        public MonitoredProcess(Device device, Process process) {
-            this.device = device;
-            this.process = process;
-            this.lastRequest = Instant.now();
-        }
+        private volatile ScheduledFuture<?> expiry;
 
-        public void addUser() {
-            users++;
-        }
-
-        public void removeUser() {
-            users--;
-        }
-
-        public boolean hasUsers() {
-            return users > 0;
+        public MonitoredProcess(Device device, int priority, StreamSession session) {
+            this.device = device;
+            this.priority = priority;
+            this.session = session;
+            this.lastRequestNanos = System.nanoTime();
         }
     }
 }
@@ -0,0 +1,150 @@
+package io.mysmarthome.platforms.ffmpeg;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Tells when the playlist written by ffmpeg lists its first segment, using file system events instead of
+ * polling the folder.
+ */
+@Slf4j
+public class PlaylistWatcher {
+
+    static final String PLAYLIST = "index.m3u8";
+
+    private final WatchService watchService;
+    private final Map<Path, WatchKey> watchedFolders = new ConcurrentHashMap<>();
+    private final Map<Path, List<CompletableFuture<Void>>> pending = new ConcurrentHashMap<>();
+    private final Thread thread;
+
+    public PlaylistWatcher() throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        thread = new Thread(this::watch, "ffmpeg-playlist-watcher");
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public void stop() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            log.warn("Error closing the playlist watcher", e);
+        }
+        pending.values().forEach(l -> l.forEach(f -> f.cancel(false)));
+    }
+
+    /**
+     * @return completes once the playlist in the folder lists a segment, or fails after the timeout
+     */
+    public CompletableFuture<Void> awaitFirstSegment(Path folder, Duration timeout) throws IOException {
+        CompletableFuture<Void> ready = new CompletableFuture<>();
+        pending.computeIfAbsent(folder, k -> new CopyOnWriteArrayList<>()).add(ready);
+        ready.whenComplete((r, e) -> pending.computeIfPresent(folder, (k, l) -> {
+            l.remove(ready);
+            return l.isEmpty() ? null : l;
+        }));
+
+        // registered every time, the folder may have been replaced by a new one since the last stream
+        WatchKey key = folder.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+        WatchKey previous = watchedFolders.put(folder, key);
+        if (previous != null && previous != key) {
+            // registration of the folder replaced since
+            previous.cancel();
+        }
+        // the playlist may have been written before the folder was watched
+        check(folder);
+
+        return ready.orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops watching the folder, once its stream stopped.
+     */
+    public void unwatch(Path folder) {
+        WatchKey key = watchedFolders.remove(folder);
+        if (key != null) {
+            key.cancel();
+        }
+    }
+
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            Path folder = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                // the master playlist may be written before the playlists of the renditions
+                if (event.kind() == OVERFLOW || String.valueOf(event.context()).endsWith(".m3u8")) {
+                    check(folder);
+                }
+            }
+            key.reset();
+        }
+    }
+
+    private void check(Path folder) {
+        List<CompletableFuture<Void>> waiting = pending.get(folder);
+        if (waiting == null || waiting.isEmpty() || !hasSegment(folder)) {
+            return;
+        }
+        waiting.forEach(f -> f.complete(null));
+    }
+
+    private boolean hasSegment(Path folder) {
+        return hasSegment(folder.resolve(PLAYLIST), true);
+    }
+
+    /**
+     * @param master when the playlist may list the playlists of the renditions instead of segments, each of them
+     *               must then list a segment
+     */
+    private boolean hasSegment(Path playlist, boolean master) {
+        List<Path> entries;
+        try {
+            entries = Files.readAllLines(playlist).stream()
+                    .map(String::trim)
+                    .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                    .map(line -> playlist.resolveSibling(line))
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            // not written yet
+            return false;
+        }
+
+        List<Path> variants = entries.stream()
+                .filter(e -> e.getFileName().toString().endsWith(".m3u8"))
+                .collect(Collectors.toList());
+        if (master && !variants.isEmpty()) {
+            return variants.stream().allMatch(v -> hasSegment(v, false));
+        }
+        return entries.stream().anyMatch(Files::exists);
+    }
+}
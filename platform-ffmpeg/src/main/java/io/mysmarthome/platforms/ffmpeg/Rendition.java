@@ -0,0 +1,43 @@
+package io.mysmarthome.platforms.ffmpeg;
+
+import lombok.Value;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * One HLS variant of a stream, written as <code>WIDTHxHEIGHT@BITRATE</code>, for instance
+ * <code>640x360@600k</code>.
+ */
+@Value
+public class Rendition {
+
+    private static final Pattern FORMAT = Pattern.compile("(\\d+)x(\\d+)@(\\d+[kKmM]?)");
+
+    int width;
+    int height;
+    String bitrate;
+
+    /**
+     * @param renditions renditions separated by commas, may be empty
+     */
+    public static List<Rendition> parseAll(String renditions) {
+        List<Rendition> result = new ArrayList<>();
+        for (String rendition : renditions.split(",")) {
+            if (!rendition.isBlank()) {
+                result.add(parse(rendition.trim()));
+            }
+        }
+        return result;
+    }
+
+    public static Rendition parse(String rendition) {
+        Matcher matcher = FORMAT.matcher(rendition);
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Invalid rendition '" + rendition + "', expected WIDTHxHEIGHT@BITRATE");
+        }
+        return new Rendition(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)), matcher.group(3));
+    }
+}
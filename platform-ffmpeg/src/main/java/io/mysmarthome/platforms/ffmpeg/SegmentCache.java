@@ -0,0 +1,108 @@
+package io.mysmarthome.platforms.ffmpeg;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the segments and playlists of a device in memory, so every viewer of a stream is served from the same
+ * buffer instead of opening the file again. An entry is valid while the modification time and size of the file
+ * do not change, which also covers the playlist between two rewrites. When a playlist is reloaded, the segments
+ * of its folder that no playlist lists any more are dropped, as ffmpeg is about to delete them.
+ */
+@Slf4j
+public class SegmentCache {
+
+    private static final String PLAYLIST_EXTENSION = ".m3u8";
+
+    private final Path folder;
+    private final Map<String, CachedFile> files = new ConcurrentHashMap<>();
+
+    public SegmentCache(Path folder) {
+        this.folder = folder;
+    }
+
+    /**
+     * @return the content of the file, empty when it does not exist
+     */
+    public Optional<byte[]> get(String name) throws IOException {
+        Path file = folder.resolve(name);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            files.remove(name);
+            return Optional.empty();
+        }
+
+        CachedFile cached = files.get(name);
+        if (cached != null && cached.isSame(attributes)) {
+            return Optional.of(cached.getData());
+        }
+
+        byte[] data;
+        try {
+            data = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            files.remove(name);
+            return Optional.empty();
+        }
+        // a file still being written is served but not kept, the next request reads it again
+        if (data.length == attributes.size()) {
+            files.put(name, new CachedFile(attributes.lastModifiedTime(), data));
+            if (name.endsWith(PLAYLIST_EXTENSION)) {
+                evictUnlisted(name);
+            }
+        }
+        return Optional.of(data);
+    }
+
+    public void clear() {
+        files.clear();
+    }
+
+    /**
+     * Drops the segments of the folder of the playlist that none of its cached playlists lists any more, a folder
+     * holds a playlist per rendition.
+     */
+    private void evictUnlisted(String playlist) {
+        Path parent = Paths.get(playlist).getParent();
+        Set<String> listed = new HashSet<>();
+        files.forEach((name, file) -> {
+            if (name.endsWith(PLAYLIST_EXTENSION) && Objects.equals(Paths.get(name).getParent(), parent)) {
+                new String(file.getData(), StandardCharsets.UTF_8).lines()
+                        .filter(line -> !line.isBlank() && !line.startsWith("#"))
+                        .map(line -> parent == null ? line : parent.resolve(line).toString())
+                        .forEach(listed::add);
+            }
+        });
+
+        files.keySet().removeIf(name -> !name.endsWith(PLAYLIST_EXTENSION)
+                && Objects.equals(Paths.get(name).getParent(), parent)
+                && !listed.contains(name));
+    }
+
+    @Value
+    private static class CachedFile {
+        FileTime lastModified;
+        byte[] data;
+
+        boolean isSame(BasicFileAttributes attributes) {
+            return lastModified.equals(attributes.lastModifiedTime()) && data.length == attributes.size();
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package io.mysmarthome.platforms.ffmpeg;
+
+import io.mysmarthome.platforms.ffmpegcommon.NamedThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Deletes the files written by ffmpeg in the background, so starting or stopping a stream never waits for the
+ * disk. On start the folder of the device is swapped for an empty one, which is a single rename, and the old
+ * content is deleted later. While a stream runs, the segments that dropped out of its playlist are deleted on
+ * every sweep. On stop, whatever is older than the stop is deleted.
+ */
+@Slf4j
+public class SegmentJanitor {
+
+    private static final String PLAYLIST_EXTENSION = ".m3u8";
+    private static final String TRASH_PREFIX = ".trash-";
+
+    private final Path dataFolder;
+    private final Duration interval;
+    private final Set<Path> activeFolders = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("ffmpeg-segment-janitor"));
+
+    private final AtomicLong bytesReclaimed = new AtomicLong();
+    private final AtomicLong filesDeleted = new AtomicLong();
+    private final AtomicLong cleanupNanos = new AtomicLong();
+
+    public SegmentJanitor(Path dataFolder, Duration interval) {
+        this.dataFolder = dataFolder;
+        this.interval = interval;
+    }
+
+    public void start() {
+        // trash left behind by a previous run
+        executor.execute(() -> timed(() -> listTrash().forEach(this::deleteTree)));
+        executor.scheduleWithFixedDelay(() -> timed(() -> activeFolders.forEach(this::deleteExpired)),
+                interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Leaves an empty folder for the stream about to start, the previous content is deleted in the background.
+     */
+    public void streamStarted(Path folder) throws IOException {
+        activeFolders.add(folder);
+        if (isEmpty(folder)) {
+            return;
+        }
+
+        Path trash = dataFolder.resolve(TRASH_PREFIX + folder.getFileName() + "-" + System.nanoTime());
+        try {
+            Files.move(folder, trash);
+            Files.createDirectories(folder);
+            executor.execute(() -> timed(() -> deleteTree(trash)));
+        } catch (IOException e) {
+            // the folder is in use, at least make sure an old playlist is not taken for the new one
+            log.warn("Could not move away the content of {}", folder, e);
+            Files.deleteIfExists(folder.resolve(PlaylistWatcher.PLAYLIST));
+            Instant startedAt = Instant.now();
+            executor.execute(() -> timed(() -> deleteOlderThan(folder, startedAt)));
+        }
+    }
+
+    public void streamStopped(Path folder) {
+        activeFolders.remove(folder);
+        Instant stoppedAt = Instant.now();
+        executor.execute(() -> timed(() -> deleteOlderThan(folder, stoppedAt)));
+    }
+
+    public long getBytesReclaimed() {
+        return bytesReclaimed.get();
+    }
+
+    public long getFilesDeleted() {
+        return filesDeleted.get();
+    }
+
+    /**
+     * @return time spent deleting files, which used to delay the start and stop of the streams
+     */
+    public long getCleanupMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(cleanupNanos.get());
+    }
+
+    /**
+     * Deletes the segments that are no longer in any playlist of their folder and are older than all the listed
+     * ones, so the segment being written, which is not listed yet, is kept. A folder holds a playlist per
+     * rendition, plus the master playlist.
+     */
+    private void deleteExpired(Path folder) {
+        try (Stream<Path> files = Files.walk(folder)) {
+            Map<Path, List<Path>> playlists = files
+                    .filter(f -> f.getFileName().toString().endsWith(PLAYLIST_EXTENSION))
+                    .collect(Collectors.groupingBy(Path::getParent));
+            for (Map.Entry<Path, List<Path>> e : playlists.entrySet()) {
+                deleteExpired(e.getKey(), e.getValue());
+            }
+        } catch (NoSuchFileException | UncheckedIOException e) {
+            // the folder was swapped or cleaned meanwhile
+        } catch (IOException e) {
+            log.warn("Error cleaning {}", folder, e);
+        }
+    }
+
+    private void deleteExpired(Path folder, List<Path> playlists) throws IOException {
+        Set<Path> listed = new HashSet<>();
+        for (Path playlist : playlists) {
+            try {
+                Files.readAllLines(playlist, StandardCharsets.UTF_8).stream()
+                        .filter(line -> !line.isBlank() && !line.startsWith("#"))
+                        .map(folder::resolve)
+                        .forEach(listed::add);
+            } catch (NoSuchFileException e) {
+                // replaced meanwhile
+            }
+        }
+
+        Instant oldestListed = listed.stream()
+                .filter(f -> !f.getFileName().toString().endsWith(PLAYLIST_EXTENSION))
+                .map(SegmentJanitor::lastModified)
+                .filter(Objects::nonNull)
+                .min(Comparator.naturalOrder())
+                .orElse(null);
+        if (oldestListed == null) {
+            return;
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+            for (Path file : files) {
+                if (Files.isDirectory(file)
+                        || file.getFileName().toString().endsWith(PLAYLIST_EXTENSION)
+                        || listed.contains(file)) {
+                    continue;
+                }
+                delete(file, oldestListed);
+            }
+        }
+    }
+
+    private void deleteOlderThan(Path folder, Instant cutoff) {
+        try (Stream<Path> files = Files.walk(folder)) {
+            files.filter(Files::isRegularFile).forEach(f -> delete(f, cutoff));
+        } catch (NoSuchFileException | UncheckedIOException e) {
+            // the folder was swapped or cleaned meanwhile
+        } catch (IOException e) {
+            log.warn("Error cleaning {}", folder, e);
+        }
+    }
+
+    private void deleteTree(Path folder) {
+        try (Stream<Path> files = Files.walk(folder)) {
+            files.sorted(Comparator.reverseOrder()).forEach(f -> delete(f, null));
+        } catch (IOException | UncheckedIOException e) {
+            log.warn("Error deleting {}", folder, e);
+        }
+    }
+
+    /**
+     * Deletes the file when it was last modified before the cutoff, or always when there is no cutoff.
+     */
+    private void delete(Path file, Instant cutoff) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            if (!attributes.isRegularFile() && !attributes.isDirectory()) {
+                return;
+            }
+            if (cutoff != null && !attributes.lastModifiedTime().toInstant().isBefore(cutoff)) {
+                return;
+            }
+            Files.delete(file);
+            if (attributes.isRegularFile()) {
+                bytesReclaimed.addAndGet(attributes.size());
+                filesDeleted.incrementAndGet();
+            }
+        } catch (NoSuchFileException e) {
+            // already gone
+        } catch (IOException e) {
+            log.warn("Could not delete {}", file, e);
+        }
+    }
+
+    private List<Path> listTrash() {
+        try (Stream<Path> files = Files.list(dataFolder)) {
+            return files.filter(f -> f.getFileName().toString().startsWith(TRASH_PREFIX))
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            log.warn("Error listing {}", dataFolder, e);
+            return List.of();
+        }
+    }
+
+    /**
+     * Runs a cleanup task and logs what it reclaimed, the tasks all run on the janitor thread one after the other.
+     */
+    private void timed(Runnable task) {
+        long start = System.nanoTime();
+        long bytes = getBytesReclaimed();
+        long files = getFilesDeleted();
+        long elapsed;
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            log.warn("Error cleaning the segments", e);
+        } finally {
+            elapsed = System.nanoTime() - start;
+            cleanupNanos.addAndGet(elapsed);
+        }
+        long deleted = getFilesDeleted() - files;
+        if (deleted > 0) {
+            log.info("Segment cleanup: {} files, {} bytes reclaimed in {} ms, {} files, {} bytes in {} ms in total",
+                    deleted, getBytesReclaimed() - bytes, TimeUnit.NANOSECONDS.toMillis(elapsed),
+                    getFilesDeleted(), getBytesReclaimed(), getCleanupMillis());
+        }
+    }
+
+    private static boolean isEmpty(Path folder) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+            return !files.iterator().hasNext();
+        } catch (NoSuchFileException e) {
+            Files.createDirectories(folder);
+            return true;
+        }
+    }
+
+    private static Instant lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toInstant();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package io.mysmarthome.platforms.ffmpeg;
+
+import io.mysmarthome.platforms.ffmpegcommon.ProcessSupervisor;
+import lombok.Data;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A supervised ffmpeg process and the future that completes once its first segment can be played.
+ */
+@Data
+public class StreamSession {
+
+    private final ProcessSupervisor supervisor;
+
+    private final CompletableFuture<Void> ready;
+
+    /**
+     * Where the segments are kept, null when ffmpeg writes them to disk.
+     */
+    private final MemorySegmentStore segmentStore;
+
+    public Optional<MemorySegmentStore> getSegmentStore() {
+        return Optional.ofNullable(segmentStore);
+    }
+}
@@ -0,0 +1,158 @@
+package io.mysmarthome.platforms.ffmpeg;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cuts the MPEG-TS written by ffmpeg on its standard output into HLS segments. A segment is closed on the first
+ * key frame (random access indicator) after the target duration, the duration being measured with the PCR of
+ * the stream. Every segment starts with the last PAT and PMT seen, so it can be decoded on its own.
+ */
+@Slf4j
+class TsSegmenter implements Runnable {
+
+    private static final int PACKET_SIZE = 188;
+    private static final byte SYNC_BYTE = 0x47;
+    private static final int PAT_PID = 0;
+    private static final long PCR_CLOCK = 90_000;
+    private static final long PCR_MASK = (1L << 33) - 1;
+
+    private final String deviceId;
+    private final InputStream input;
+    private final MemorySegmentStore store;
+    private final double targetDuration;
+
+    private final ByteArrayOutputStream segment = new ByteArrayOutputStream();
+    private boolean inSegment = false;
+    private byte[] pat;
+    private byte[] pmt;
+    private int pmtPid = -1;
+    private long segmentStartPcr = -1;
+    private long lastPcr = -1;
+    private long segmentStartNanos;
+
+    TsSegmenter(String deviceId, InputStream input, MemorySegmentStore store, double targetDuration) {
+        this.deviceId = deviceId;
+        this.input = input;
+        this.store = store;
+        this.targetDuration = targetDuration;
+    }
+
+    @Override
+    public void run() {
+        // each segmenter reads a new ffmpeg process
+        store.discontinuity();
+        byte[] buffer = new byte[PACKET_SIZE * 128];
+        int length = 0;
+        try (InputStream in = input) {
+            int n;
+            while ((n = in.read(buffer, length, buffer.length - length)) != -1) {
+                length += n;
+                int offset = 0;
+                while (length - offset >= PACKET_SIZE) {
+                    if (buffer[offset] != SYNC_BYTE) {
+                        offset++; // lost sync, look for the next packet
+                        continue;
+                    }
+                    onPacket(buffer, offset);
+                    offset += PACKET_SIZE;
+                }
+                System.arraycopy(buffer, offset, buffer, 0, length - offset);
+                length -= offset;
+            }
+        } catch (IOException e) {
+            log.debug("Stream of device {} closed", deviceId, e);
+        }
+        log.info("Segmenter of device {} finished", deviceId);
+    }
+
+    private void onPacket(byte[] buffer, int offset) {
+        int pid = ((buffer[offset + 1] & 0x1F) << 8) | (buffer[offset + 2] & 0xFF);
+        boolean payloadStart = (buffer[offset + 1] & 0x40) != 0;
+        boolean hasAdaptation = (buffer[offset + 3] & 0x20) != 0;
+        int adaptationLength = hasAdaptation ? buffer[offset + 4] & 0xFF : 0;
+
+        if (pid == PAT_PID) {
+            pat = copy(buffer, offset);
+            if (payloadStart) {
+                readPmtPid(buffer, offset, hasAdaptation ? adaptationLength + 1 : 0);
+            }
+        } else if (pid == pmtPid) {
+            pmt = copy(buffer, offset);
+        }
+
+        boolean keyFrame = false;
+        if (hasAdaptation && adaptationLength > 0) {
+            int flags = buffer[offset + 5] & 0xFF;
+            keyFrame = (flags & 0x40) != 0;
+            if ((flags & 0x10) != 0 && adaptationLength >= 7) {
+                lastPcr = readPcr(buffer, offset + 6);
+            }
+        }
+
+        if (keyFrame && (!inSegment || duration() >= targetDuration)) {
+            startSegment();
+        }
+        if (inSegment) {
+            segment.write(buffer, offset, PACKET_SIZE);
+        }
+    }
+
+    private void startSegment() {
+        if (inSegment) {
+            store.add(segment.toByteArray(), duration());
+            segment.reset();
+        }
+        inSegment = true;
+        segmentStartPcr = lastPcr;
+        segmentStartNanos = System.nanoTime();
+        if (pat != null && pmt != null) {
+            segment.write(pat, 0, PACKET_SIZE);
+            segment.write(pmt, 0, PACKET_SIZE);
+        }
+    }
+
+    private double duration() {
+        if (segmentStartPcr >= 0 && lastPcr >= 0) {
+            return (double) ((lastPcr - segmentStartPcr) & PCR_MASK) / PCR_CLOCK;
+        }
+        // no clock in the stream, fall back to the wall clock
+        return (double) (System.nanoTime() - segmentStartNanos) / TimeUnit.SECONDS.toNanos(1);
+    }
+
+    private void readPmtPid(byte[] buffer, int offset, int adaptationSize) {
+        int pointer = offset + 4 + adaptationSize;
+        int section = pointer + 1 + (buffer[pointer] & 0xFF);
+        if (section + 8 > offset + PACKET_SIZE) {
+            return;
+        }
+        int sectionLength = ((buffer[section + 1] & 0x0F) << 8) | (buffer[section + 2] & 0xFF);
+        int programs = section + 8;
+        int end = Math.min(section + 3 + sectionLength - 4, offset + PACKET_SIZE); // crc excluded
+        for (int i = programs; i + 4 <= end; i += 4) {
+            int programNumber = ((buffer[i] & 0xFF) << 8) | (buffer[i + 1] & 0xFF);
+            if (programNumber != 0) {
+                pmtPid = ((buffer[i + 2] & 0x1F) << 8) | (buffer[i + 3] & 0xFF);
+                return;
+            }
+        }
+    }
+
+    private static long readPcr(byte[] buffer, int i) {
+        return ((long) (buffer[i] & 0xFF) << 25)
+                | ((long) (buffer[i + 1] & 0xFF) << 17)
+                | ((long) (buffer[i + 2] & 0xFF) << 9)
+                | ((long) (buffer[i + 3] & 0xFF) << 1)
+                | ((buffer[i + 4] & 0xFF) >> 7);
+    }
+
+    private static byte[] copy(byte[] buffer, int offset) {
+        byte[] packet = new byte[PACKET_SIZE];
+        System.arraycopy(buffer, offset, packet, 0, PACKET_SIZE);
+        return packet;
+    }
+}
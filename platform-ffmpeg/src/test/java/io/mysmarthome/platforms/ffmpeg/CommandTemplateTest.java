@@ -0,0 +1,63 @@
+package io.mysmarthome.platforms.ffmpeg;
+
+import io.mysmarthome.platforms.ffmpeg.CommandTemplate.Placeholder;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CommandTemplateTest {
+
+    @Test
+    void lonePlaceholderBecomesAsManyArgumentsAsValues() {
+        CommandTemplate template = CommandTemplate.compile("${executablePath} ${protocol_options} -i ${url}");
+
+        List<String> args = template.render(Map.of(
+                Placeholder.EXECUTABLE_PATH, List.of("/usr/bin/ffmpeg"),
+                Placeholder.PROTOCOL_OPTIONS, List.of("-rtsp_transport", "tcp"),
+                Placeholder.URL, List.of("rtsp://cam/stream")));
+
+        assertEquals(List.of("/usr/bin/ffmpeg", "-rtsp_transport", "tcp", "-i", "rtsp://cam/stream"), args);
+    }
+
+    @Test
+    void placeholderWithoutValueLeavesNoArgument() {
+        CommandTemplate template = CommandTemplate.compile("ffmpeg ${protocol_options} -i ${url}");
+
+        assertEquals(List.of("ffmpeg", "-i", "rtsp://cam"),
+                template.render(Map.of(Placeholder.URL, List.of("rtsp://cam"))));
+    }
+
+    @Test
+    void placeholderInsideAnArgumentIsJoined() {
+        CommandTemplate template = CommandTemplate.compile("ffmpeg -hls_segment_filename 'seg/${device_id}_%03d.ts'");
+
+        assertEquals(List.of("ffmpeg", "-hls_segment_filename", "seg/living room_%03d.ts"),
+                template.render(Map.of(Placeholder.DEVICE_ID, List.of("living room"))));
+    }
+
+    @Test
+    void valueWithSpacesStaysOneArgument() {
+        CommandTemplate template = CommandTemplate.compile("ffmpeg -i ${url} out.m3u8");
+
+        assertEquals(List.of("ffmpeg", "-i", "rtsp://cam/my stream", "out.m3u8"),
+                template.render(Map.of(Placeholder.URL, List.of("rtsp://cam/my stream"))));
+    }
+
+    @Test
+    void sameTemplateRendersEveryTime() {
+        CommandTemplate template = CommandTemplate.compile("ffmpeg -i ${url}");
+
+        assertEquals(List.of("ffmpeg", "-i", "a"), template.render(Map.of(Placeholder.URL, List.of("a"))));
+        assertEquals(List.of("ffmpeg", "-i", "b"), template.render(Map.of(Placeholder.URL, List.of("b"))));
+    }
+
+    @Test
+    void rejectsUnknownAndUnterminatedPlaceholders() {
+        assertThrows(IllegalArgumentException.class, () -> CommandTemplate.compile("ffmpeg -i ${uri}"));
+        assertThrows(IllegalArgumentException.class, () -> CommandTemplate.compile("ffmpeg -i ${url"));
+    }
+}
@@ -0,0 +1,48 @@
+package io.mysmarthome.platforms.ffmpeg;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MemorySegmentStoreTest {
+
+    private final MemorySegmentStore store = new MemorySegmentStore(2);
+
+    @Test
+    void firstProcessStartsWithoutDiscontinuity() {
+        store.discontinuity();
+        store.add(new byte[1], 2.0);
+
+        assertFalse(playlist().contains("#EXT-X-DISCONTINUITY"));
+    }
+
+    @Test
+    void segmentOfANewProcessIsMarked() {
+        store.add(new byte[1], 2.0);
+        store.discontinuity();
+        store.add(new byte[1], 2.0);
+
+        assertTrue(playlist().endsWith("#EXTINF:2.000,\n0.ts\n#EXT-X-DISCONTINUITY\n#EXTINF:2.000,\n1.ts\n"));
+    }
+
+    @Test
+    void discontinuitiesLeavingThePlaylistAreCounted() {
+        store.add(new byte[1], 2.0);
+        store.discontinuity();
+        store.add(new byte[1], 2.0);
+        store.add(new byte[1], 2.0);
+        store.add(new byte[1], 2.0);
+
+        String playlist = playlist();
+        assertTrue(playlist.contains("#EXT-X-MEDIA-SEQUENCE:2\n#EXT-X-DISCONTINUITY-SEQUENCE:1\n"));
+        assertFalse(playlist.contains("#EXT-X-DISCONTINUITY\n"));
+        assertFalse(store.get("1.ts").isPresent());
+    }
+
+    private String playlist() {
+        return new String(store.get(MemorySegmentStore.PLAYLIST).orElseThrow(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,166 @@
+package io.mysmarthome.platforms.ffmpeg;
+
+import io.mysmarthome.device.Device;
+import io.mysmarthome.platforms.ffmpegcommon.Backoff;
+import io.mysmarthome.platforms.ffmpegcommon.ProcessSupervisor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 64 threads calling keepAlive on the streams of 8 devices, as the downloads of many viewers do. Prints the keep
+ * alives per second and the bytes allocated per call, for the monitor and for the containsKey, get and Instant of
+ * the keep alive it replaced.
+ */
+@Tag("load")
+class MonitorLoadTest {
+
+    private static final int THREADS = 64;
+    private static final int DEVICES = 8;
+    private static final long WARMUP_MILLIS = 2000;
+    private static final long RUN_MILLIS = 5000;
+    private static final com.sun.management.ThreadMXBean ALLOCATIONS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final Monitor monitor = new Monitor(DEVICES, 3600, Duration.ofSeconds(1));
+
+    @AfterEach
+    void tearDown() {
+        monitor.stop();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    void keepAliveFromSixtyFourThreads() throws Exception {
+        List<Device> devices = new ArrayList<>();
+        Map<String, LegacyProcess> legacyStreams = new ConcurrentHashMap<>();
+        for (int i = 0; i < DEVICES; i++) {
+            Device device = device("cam" + i);
+            devices.add(device);
+            monitor.startStream(device, 0, this::session).get(5, TimeUnit.SECONDS);
+            legacyStreams.put(device.getDeviceId(), new LegacyProcess());
+        }
+
+        Consumer<Device> legacy = device -> {
+            if (legacyStreams.containsKey(device.getDeviceId())) {
+                legacyStreams.get(device.getDeviceId()).lastRequest = Instant.now();
+            }
+        };
+        run(devices, legacy, WARMUP_MILLIS);
+        run(devices, monitor::keepAlive, WARMUP_MILLIS);
+
+        Result before = run(devices, legacy, RUN_MILLIS);
+        Result after = run(devices, monitor::keepAlive, RUN_MILLIS);
+
+        System.out.printf("%d threads, %d devices, %d cores%n", THREADS, DEVICES,
+                Runtime.getRuntime().availableProcessors());
+        System.out.printf("containsKey, get, Instant: %s%n", before);
+        System.out.printf("Monitor.keepAlive:         %s%n", after);
+        assertTrue(after.bytesPerCall < 1);
+    }
+
+    private Result run(List<Device> devices, Consumer<Device> keepAlive, long millis) throws InterruptedException {
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong calls = new AtomicLong();
+        AtomicLong allocated = new AtomicLong();
+        CountDownLatch started = new CountDownLatch(THREADS);
+        CountDownLatch done = new CountDownLatch(THREADS);
+        for (int t = 0; t < THREADS; t++) {
+            Device device = devices.get(t % DEVICES);
+            Thread thread = new Thread(() -> {
+                started.countDown();
+                long allocatedBefore = allocatedBytes();
+                long n = 0;
+                while (running.get()) {
+                    keepAlive.accept(device);
+                    n++;
+                }
+                allocated.addAndGet(allocatedBytes() - allocatedBefore);
+                calls.addAndGet(n);
+                done.countDown();
+            });
+            thread.start();
+        }
+
+        started.await();
+        long start = System.nanoTime();
+        Thread.sleep(millis);
+        running.set(false);
+        done.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return new Result(calls.get() / seconds, (double) allocated.get() / calls.get());
+    }
+
+    private static long allocatedBytes() {
+        return ALLOCATIONS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * A session ready right away, whose supervisor is never started, there is no process to stop.
+     */
+    private StreamSession session() {
+        ProcessSupervisor supervisor = new ProcessSupervisor("cam", () -> {
+            throw new IOException("not launched in tests");
+        }, () -> false, scheduler, new Backoff(Duration.ofSeconds(1), Duration.ofSeconds(1)), Duration.ofSeconds(1));
+        return new StreamSession(supervisor, CompletableFuture.completedFuture(null), null);
+    }
+
+    private static Device device(String id) {
+        return (Device) Proxy.newProxyInstance(Device.class.getClassLoader(), new Class<?>[]{Device.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getDeviceId":
+                            return id;
+                        case "toString":
+                            return id;
+                        case "hashCode":
+                            return id.hashCode();
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static class LegacyProcess {
+        private volatile Instant lastRequest = Instant.now();
+    }
+
+    private static class Result {
+        private final double callsPerSecond;
+        private final double bytesPerCall;
+
+        Result(double callsPerSecond, double bytesPerCall) {
+            this.callsPerSecond = callsPerSecond;
+            this.bytesPerCall = bytesPerCall;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.1f M keep alives/s, %.1f bytes allocated per call", callsPerSecond / 1e6,
+                    bytesPerCall);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package io.mysmarthome.platforms.ffmpeg;
+
+import io.mysmarthome.device.Device;
+import io.mysmarthome.platforms.ffmpegcommon.Backoff;
+import io.mysmarthome.platforms.ffmpegcommon.ProcessSupervisor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MonitorTest {
+
+    private static final int INACTIVITY_TIMEOUT_SECONDS = 1;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final Monitor monitor = new Monitor(2, INACTIVITY_TIMEOUT_SECONDS, Duration.ofSeconds(1));
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    @AfterEach
+    void tearDown() {
+        monitor.stop();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    void streamWithoutRequestsStopsAfterTheInactivityTimeout() throws Exception {
+        Device device = device("cam");
+        monitor.setOnStopListener(d -> stopped.countDown());
+
+        assertTrue(monitor.startStream(device, 0, this::session).get(5, TimeUnit.SECONDS));
+
+        assertTrue(stopped.await(5, TimeUnit.SECONDS));
+        assertFalse(monitor.alreadyStreaming(device));
+    }
+
+    @Test
+    void keepAlivePushesTheDeadlineForward() throws Exception {
+        Device device = device("cam");
+        monitor.setOnStopListener(d -> stopped.countDown());
+        monitor.startStream(device, 0, this::session).get(5, TimeUnit.SECONDS);
+
+        long until = System.nanoTime() + TimeUnit.SECONDS.toNanos(INACTIVITY_TIMEOUT_SECONDS * 2L);
+        while (System.nanoTime() - until < 0) {
+            monitor.keepAlive(device);
+            Thread.sleep(100);
+        }
+
+        assertTrue(monitor.alreadyStreaming(device));
+        assertTrue(stopped.await(5, TimeUnit.SECONDS));
+        assertFalse(monitor.alreadyStreaming(device));
+    }
+
+    @Test
+    void keepAliveOfAnotherDeviceDoesNotKeepTheStream() throws Exception {
+        Device device = device("cam");
+        Device other = device("other");
+        monitor.setOnStopListener(d -> stopped.countDown());
+        monitor.startStream(device, 0, this::session).get(5, TimeUnit.SECONDS);
+
+        for (int i = 0; i < 5; i++) {
+            monitor.keepAlive(other);
+        }
+
+        assertTrue(stopped.await(5, TimeUnit.SECONDS));
+        assertFalse(monitor.alreadyStreaming(other));
+    }
+
+    /**
+     * A session ready right away, whose supervisor is never started, there is no process to stop.
+     */
+    private StreamSession session() {
+        ProcessSupervisor supervisor = new ProcessSupervisor("cam", () -> {
+            throw new IOException("not launched in tests");
+        }, () -> false, scheduler, new Backoff(Duration.ofSeconds(1), Duration.ofSeconds(1)), Duration.ofSeconds(1));
+        return new StreamSession(supervisor, CompletableFuture.completedFuture(null), null);
+    }
+
+    private static Device device(String id) {
+        return (Device) Proxy.newProxyInstance(Device.class.getClassLoader(), new Class<?>[]{Device.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getDeviceId":
+                            return id;
+                        case "toString":
+                            return id;
+                        case "hashCode":
+                            return id.hashCode();
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
@@ -0,0 +1,65 @@
+package io.mysmarthome.platforms.ffmpeg;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class PlaylistWatcherTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    @TempDir
+    Path dataFolder;
+
+    private PlaylistWatcher watcher;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        watcher = new PlaylistWatcher();
+        watcher.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        watcher.stop();
+    }
+
+    @Test
+    void completesOnceThePlaylistListsASegment() throws Exception {
+        Path folder = Files.createDirectory(dataFolder.resolve("cam"));
+        CompletableFuture<Void> ready = watcher.awaitFirstSegment(folder, TIMEOUT);
+
+        Files.writeString(folder.resolve(PlaylistWatcher.PLAYLIST), "#EXTM3U\n");
+        Thread.sleep(100);
+        assertFalse(ready.isDone());
+
+        Files.write(folder.resolve("0.ts"), new byte[1]);
+        Files.writeString(folder.resolve(PlaylistWatcher.PLAYLIST), "#EXTM3U\n#EXTINF:2.0,\n0.ts\n");
+        ready.get(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    void watchesTheFolderOfTheNextStreamAgain() throws Exception {
+        Path folder = Files.createDirectory(dataFolder.resolve("cam"));
+        watcher.awaitFirstSegment(folder, TIMEOUT).cancel(false);
+        watcher.unwatch(folder);
+        Files.delete(folder);
+
+        Files.createDirectory(folder);
+        CompletableFuture<Void> ready = watcher.awaitFirstSegment(folder, TIMEOUT);
+        Files.write(folder.resolve("0.ts"), new byte[1]);
+        Files.writeString(folder.resolve(PlaylistWatcher.PLAYLIST), "#EXTM3U\n#EXTINF:2.0,\n0.ts\n");
+
+        ready.get(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+    }
+}
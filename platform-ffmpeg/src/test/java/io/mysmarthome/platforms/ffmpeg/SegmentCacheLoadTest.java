@@ -0,0 +1,175 @@
+package io.mysmarthome.platforms.ffmpeg;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 20 viewers of one HLS stream, each reading the playlist and then every segment it lists, while the segments
+ * rotate every second as with ffmpeg's delete_segments. Prints the reads per second served by the cache and by
+ * reading the file on every request, as onDownload did.
+ */
+@Tag("load")
+class SegmentCacheLoadTest {
+
+    private static final int VIEWERS = 20;
+    private static final int SEGMENTS = 6;
+    private static final int SEGMENT_SIZE = 1024 * 1024;
+    private static final long ROTATION_MILLIS = 1000;
+    private static final long RUN_MILLIS = 5000;
+    private static final String PLAYLIST = "cam/index.m3u8";
+
+    @TempDir
+    Path folder;
+
+    @Test
+    void twentyViewers() throws Exception {
+        Files.createDirectories(folder.resolve("cam"));
+        SegmentCache cache = new SegmentCache(folder);
+
+        Result direct = run(name -> read(folder.resolve(name)));
+        Result cached = run(cache::get);
+
+        System.out.printf("%d viewers, %d segments of %d bytes rotated every %d ms%n", VIEWERS, SEGMENTS,
+                SEGMENT_SIZE, ROTATION_MILLIS);
+        System.out.printf("file read per request: %s%n", direct);
+        System.out.printf("segment cache:         %s%n", cached);
+        assertTrue(cached.readsPerSecond() > direct.readsPerSecond());
+    }
+
+    private Result run(Reader reader) throws Exception {
+        Rotation rotation = new Rotation();
+        rotation.rotate();
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong reads = new AtomicLong();
+        AtomicLong bytes = new AtomicLong();
+        AtomicLong missing = new AtomicLong();
+        ExecutorService viewers = Executors.newFixedThreadPool(VIEWERS + 1);
+        List<Future<?>> tasks = new ArrayList<>();
+        tasks.add(viewers.submit(() -> {
+            while (running.get()) {
+                Thread.sleep(ROTATION_MILLIS);
+                rotation.rotate();
+            }
+            return null;
+        }));
+        for (int i = 0; i < VIEWERS; i++) {
+            tasks.add(viewers.submit(() -> {
+                while (running.get()) {
+                    Optional<byte[]> playlist = reader.get(PLAYLIST);
+                    if (playlist.isEmpty()) {
+                        continue;
+                    }
+                    for (String segment : segments(playlist.get())) {
+                        Optional<byte[]> data = reader.get("cam/" + segment);
+                        reads.incrementAndGet();
+                        if (data.isPresent()) {
+                            bytes.addAndGet(data.get().length);
+                        } else {
+                            // rotated between the playlist and the segment
+                            missing.incrementAndGet();
+                        }
+                    }
+                }
+                return null;
+            }));
+        }
+
+        long start = System.nanoTime();
+        Thread.sleep(RUN_MILLIS);
+        running.set(false);
+        for (Future<?> task : tasks) {
+            task.get();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        viewers.shutdown();
+        viewers.awaitTermination(1, TimeUnit.SECONDS);
+        return new Result(reads.get() / seconds, bytes.get() / seconds / 1e6, missing.get());
+    }
+
+    private static List<String> segments(byte[] playlist) {
+        return new String(playlist, StandardCharsets.UTF_8).lines()
+                .filter(line -> !line.isBlank() && !line.startsWith("#"))
+                .collect(Collectors.toList());
+    }
+
+    private static Optional<byte[]> read(Path file) throws IOException {
+        return Files.exists(file) ? Optional.of(Files.readAllBytes(file)) : Optional.empty();
+    }
+
+    /**
+     * Writes the next segment, lists the last ones in the playlist and deletes the one that left it.
+     */
+    private class Rotation {
+        private final Random random = new Random(0);
+        private int next = 0;
+
+        void rotate() throws IOException {
+            byte[] data = new byte[SEGMENT_SIZE];
+            random.nextBytes(data);
+            write("cam/" + next + ".ts", data);
+
+            StringBuilder playlist = new StringBuilder("#EXTM3U\n#EXT-X-MEDIA-SEQUENCE:")
+                    .append(Math.max(0, next - SEGMENTS + 1)).append('\n');
+            for (int i = Math.max(0, next - SEGMENTS + 1); i <= next; i++) {
+                playlist.append("#EXTINF:1.0,\n").append(i).append(".ts\n");
+            }
+            write(PLAYLIST, playlist.toString().getBytes(StandardCharsets.UTF_8));
+
+            Files.deleteIfExists(folder.resolve("cam/" + (next - SEGMENTS) + ".ts"));
+            next++;
+        }
+
+        private void write(String name, byte[] data) throws IOException {
+            Path temporary = folder.resolve(name + ".tmp");
+            Files.write(temporary, data);
+            Files.move(temporary, folder.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private static class Result {
+        private final double readsPerSecond;
+        private final double megabytesPerSecond;
+        private final long missing;
+
+        Result(double readsPerSecond, double megabytesPerSecond, long missing) {
+            this.readsPerSecond = readsPerSecond;
+            this.megabytesPerSecond = megabytesPerSecond;
+            this.missing = missing;
+        }
+
+        double readsPerSecond() {
+            return readsPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.0f segment reads/s, %.0f MB/s, %d segments rotated out before read",
+                    readsPerSecond, megabytesPerSecond, missing);
+        }
+    }
+
+    private interface Reader {
+        Optional<byte[]> get(String name) throws IOException;
+    }
+}
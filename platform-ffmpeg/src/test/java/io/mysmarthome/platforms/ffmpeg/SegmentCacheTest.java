@@ -0,0 +1,106 @@
+package io.mysmarthome.platforms.ffmpeg;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SegmentCacheTest {
+
+    @TempDir
+    Path folder;
+
+    private SegmentCache cache;
+
+    @BeforeEach
+    void setUp() {
+        cache = new SegmentCache(folder);
+    }
+
+    @Test
+    void servesTheSameBufferWhileTheFileIsUnchanged() throws IOException {
+        write("cam/0.ts", "segment", 1);
+
+        byte[] first = cache.get("cam/0.ts").orElseThrow();
+        byte[] second = cache.get("cam/0.ts").orElseThrow();
+
+        assertArrayEquals(bytes("segment"), first);
+        assertSame(first, second);
+    }
+
+    @Test
+    void readsTheFileAgainOnceRewritten() throws IOException {
+        write("cam/index.m3u8", "#EXTM3U\n0.ts\n", 1);
+        byte[] old = cache.get("cam/index.m3u8").orElseThrow();
+
+        write("cam/index.m3u8", "#EXTM3U\n1.ts\n", 2);
+
+        byte[] updated = cache.get("cam/index.m3u8").orElseThrow();
+        assertArrayEquals(bytes("#EXTM3U\n1.ts\n"), updated);
+        assertNotSame(old, updated);
+    }
+
+    @Test
+    void deletedFileIsNotServed() throws IOException {
+        write("cam/0.ts", "segment", 1);
+        cache.get("cam/0.ts");
+
+        Files.delete(folder.resolve("cam/0.ts"));
+
+        assertTrue(cache.get("cam/0.ts").isEmpty());
+        assertTrue(cache.get("cam/missing.ts").isEmpty());
+    }
+
+    @Test
+    void playlistReloadDropsTheSegmentsItNoLongerLists() throws IOException {
+        write("cam/0.ts", "zero", 1);
+        write("cam/1.ts", "one", 1);
+        write("cam/index.m3u8", "#EXTM3U\n#EXTINF:2.0,\n0.ts\n#EXTINF:2.0,\n1.ts\n", 1);
+        cache.get("cam/index.m3u8");
+        byte[] zero = cache.get("cam/0.ts").orElseThrow();
+        byte[] one = cache.get("cam/1.ts").orElseThrow();
+
+        write("cam/index.m3u8", "#EXTM3U\n#EXTINF:2.0,\n1.ts\n", 2);
+        cache.get("cam/index.m3u8");
+
+        assertNotSame(zero, cache.get("cam/0.ts").orElseThrow());
+        assertSame(one, cache.get("cam/1.ts").orElseThrow());
+    }
+
+    @Test
+    void renditionPlaylistsOfTheSameFolderKeepTheirSegments() throws IOException {
+        write("cam/low_0.ts", "low", 1);
+        write("cam/high_0.ts", "high", 1);
+        write("cam/low.m3u8", "#EXTM3U\nlow_0.ts\n", 1);
+        write("cam/high.m3u8", "#EXTM3U\nhigh_0.ts\n", 1);
+        cache.get("cam/low.m3u8");
+        byte[] low = cache.get("cam/low_0.ts").orElseThrow();
+
+        cache.get("cam/high.m3u8");
+
+        assertSame(low, cache.get("cam/low_0.ts").orElseThrow());
+    }
+
+    private void write(String name, String content, long second) throws IOException {
+        Path file = folder.resolve(name);
+        Files.createDirectories(file.getParent());
+        Files.write(file, bytes(content));
+        // the modification time may not change within the resolution of the file system
+        Files.setLastModifiedTime(file, FileTime.from(Instant.ofEpochSecond(second)));
+    }
+
+    private static byte[] bytes(String content) {
+        return content.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,148 @@
+package io.mysmarthome.platforms.ffmpeg;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TsSegmenterTest {
+
+    private static final int PACKET_SIZE = 188;
+    private static final int PMT_PID = 0x100;
+    private static final int VIDEO_PID = 0x101;
+    private static final long SECOND = 90_000;
+
+    private final MemorySegmentStore store = new MemorySegmentStore(5);
+
+    @Test
+    void cutsOnTheFirstKeyFrameAfterTheTargetDuration() {
+        byte[] pat = pat();
+        byte[] pmt = pmt();
+        byte[] stream = concat(pat, pmt,
+                video(true, 0), video(false, -1),
+                video(true, SECOND), video(false, 2 * SECOND),
+                video(true, 5 * SECOND / 2), video(false, -1));
+
+        run(new ByteArrayInputStream(stream));
+
+        byte[] segment = store.get("0.ts").orElseThrow();
+        assertEquals(6 * PACKET_SIZE, segment.length);
+        assertArrayEquals(pat, Arrays.copyOfRange(segment, 0, PACKET_SIZE));
+        assertArrayEquals(pmt, Arrays.copyOfRange(segment, PACKET_SIZE, 2 * PACKET_SIZE));
+        assertTrue(playlist().contains("#EXTINF:2.500,\n0.ts\n"));
+        // the last segment is still open
+        assertFalse(store.get("1.ts").isPresent());
+    }
+
+    @Test
+    void nextSegmentStartsWithTheTablesAndTheKeyFrame() {
+        byte[] key = video(true, 3 * SECOND);
+        byte[] stream = concat(pat(), pmt(), video(true, 0), key, video(true, 6 * SECOND), video(false, -1));
+
+        run(new ByteArrayInputStream(stream));
+
+        byte[] second = store.get("1.ts").orElseThrow();
+        assertEquals(3 * PACKET_SIZE, second.length);
+        assertArrayEquals(key, Arrays.copyOfRange(second, 2 * PACKET_SIZE, 3 * PACKET_SIZE));
+    }
+
+    @Test
+    void skipsPacketsBeforeTheFirstKeyFrame() {
+        byte[] stream = concat(pat(), pmt(), video(false, 0), video(false, -1),
+                video(true, SECOND), video(true, 4 * SECOND));
+
+        run(new ByteArrayInputStream(stream));
+
+        assertEquals(3 * PACKET_SIZE, store.get("0.ts").orElseThrow().length);
+    }
+
+    @Test
+    void findsPacketsSplitBetweenReadsAndAfterGarbage() {
+        byte[] stream = concat(new byte[]{1, 2, 3}, pat(), pmt(), video(true, 0), video(true, 3 * SECOND),
+                video(false, -1));
+
+        run(new FilterInputStream(new ByteArrayInputStream(stream)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 100));
+            }
+        });
+
+        assertEquals(3 * PACKET_SIZE, store.get("0.ts").orElseThrow().length);
+        assertTrue(playlist().contains("#EXTINF:3.000,"));
+    }
+
+    private void run(InputStream input) {
+        new TsSegmenter("cam", input, store, 2.0).run();
+    }
+
+    private String playlist() {
+        return new String(store.get(MemorySegmentStore.PLAYLIST).orElseThrow(), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] pat() {
+        byte[] packet = packet(0, true);
+        packet[3] = 0x10;
+        int section = 5;
+        packet[section] = 0x00;
+        packet[section + 1] = (byte) 0xB0;
+        packet[section + 2] = 13;
+        packet[section + 8] = 0x00;
+        packet[section + 9] = 0x01;
+        packet[section + 10] = (byte) (0xE0 | PMT_PID >> 8);
+        packet[section + 11] = (byte) PMT_PID;
+        return packet;
+    }
+
+    private static byte[] pmt() {
+        byte[] packet = packet(PMT_PID, true);
+        packet[3] = 0x10;
+        return packet;
+    }
+
+    /**
+     * @param pcr program clock reference, in 90 kHz ticks, or -1 for none
+     */
+    private static byte[] video(boolean keyFrame, long pcr) {
+        byte[] packet = packet(VIDEO_PID, keyFrame);
+        packet[3] = 0x30;
+        packet[4] = 7;
+        packet[5] = (byte) ((keyFrame ? 0x40 : 0) | (pcr >= 0 ? 0x10 : 0));
+        if (pcr >= 0) {
+            packet[6] = (byte) (pcr >> 25);
+            packet[7] = (byte) (pcr >> 17);
+            packet[8] = (byte) (pcr >> 9);
+            packet[9] = (byte) (pcr >> 1);
+            packet[10] = (byte) ((pcr & 1) << 7 | 0x7E);
+        }
+        return packet;
+    }
+
+    private static byte[] packet(int pid, boolean payloadStart) {
+        byte[] packet = new byte[PACKET_SIZE];
+        Arrays.fill(packet, (byte) 0xFF);
+        packet[0] = 0x47;
+        packet[1] = (byte) ((payloadStart ? 0x40 : 0) | pid >> 8);
+        packet[2] = (byte) pid;
+        packet[4] = 0;
+        return packet;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.writeBytes(part);
+        }
+        return out.toByteArray();
+    }
+}
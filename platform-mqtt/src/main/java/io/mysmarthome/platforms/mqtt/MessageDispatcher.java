@@ -0,0 +1,195 @@
+package io.mysmarthome.platforms.mqtt;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Runs the handling of the received messages away from the thread of the mqtt client, so a slow handler does not
+ * hold up the other devices. Every topic goes to the same stripe, a single thread with a bounded queue, so the
+ * messages of a topic are handled in the order they arrived. When the queue of a stripe is full the
+ * {@link OverflowPolicy} decides what gives.
+ */
+@Slf4j
+public class MessageDispatcher {
+
+    public enum OverflowPolicy {
+        /**
+         * The mqtt client waits for room in the queue, which in the end slows down the broker.
+         */
+        BLOCK,
+        /**
+         * The oldest message waiting in the queue is dropped.
+         */
+        DROP_OLDEST,
+        /**
+         * The new message is dropped.
+         */
+        DROP_NEWEST;
+
+        public static OverflowPolicy parse(String policy) {
+            return valueOf(policy.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private final Stripe[] stripes;
+    private final OverflowPolicy overflowPolicy;
+    private final Map<String, TopicStats> stats = new ConcurrentHashMap<>();
+
+    public MessageDispatcher(int threads, int queueSize, OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        this.stripes = new Stripe[threads];
+        for (int i = 0; i < threads; i++) {
+            stripes[i] = new Stripe("mqtt-dispatcher-" + i, queueSize);
+        }
+    }
+
+    public void start() {
+        for (Stripe stripe : stripes) {
+            stripe.thread.start();
+        }
+    }
+
+    public void stop() {
+        for (Stripe stripe : stripes) {
+            stripe.thread.interrupt();
+        }
+    }
+
+    /**
+     * Queues the handling of a message received on the topic.
+     *
+     * @param filter the subscription the topic matched, the metrics are kept by filter so there is a bounded
+     *               number of them whatever the wildcards let in
+     */
+    public void dispatch(String topic, String filter, Runnable handling) throws InterruptedException {
+        TopicStats topicStats = stats.computeIfAbsent(filter, TopicStats::new);
+        Task task = new Task(topicStats, handling, System.nanoTime());
+        BlockingQueue<Task> queue = stripes[Math.floorMod(topic.hashCode(), stripes.length)].queue;
+
+        topicStats.queued.incrementAndGet();
+        switch (overflowPolicy) {
+            case BLOCK:
+                queue.put(task);
+                break;
+            case DROP_OLDEST:
+                while (!queue.offer(task)) {
+                    Task oldest = queue.poll();
+                    if (oldest != null) {
+                        oldest.stats.dropped();
+                    }
+                }
+                break;
+            case DROP_NEWEST:
+                if (!queue.offer(task)) {
+                    topicStats.dropped();
+                }
+                break;
+        }
+    }
+
+    /**
+     * @return queue depth, lag and dropped messages of every topic filter that received messages so far
+     */
+    public Map<String, TopicMetrics> getMetrics() {
+        return stats.values().stream()
+                .collect(Collectors.toMap(s -> s.filter, TopicStats::snapshot));
+    }
+
+    @Value
+    public static class TopicMetrics {
+        /**
+         * Messages waiting to be handled.
+         */
+        int queueDepth;
+        /**
+         * Time the last message handled waited in the queue.
+         */
+        long lagMillis;
+        long maxLagMillis;
+        long handled;
+        long dropped;
+    }
+
+    private static class Stripe {
+        private final BlockingQueue<Task> queue;
+        private final Thread thread;
+
+        Stripe(String name, int queueSize) {
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+            this.thread = new Thread(this::run, name);
+            this.thread.setDaemon(true);
+        }
+
+        private void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                Task task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                task.run();
+            }
+        }
+    }
+
+    @Value
+    private static class Task {
+        TopicStats stats;
+        Runnable handling;
+        long queuedAt;
+
+        void run() {
+            stats.started(System.nanoTime() - queuedAt);
+            try {
+                handling.run();
+            } catch (RuntimeException e) {
+                log.error("Error handling a message of {}", stats.filter, e);
+            }
+        }
+    }
+
+    private static class TopicStats {
+        private final String filter;
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicLong handled = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private volatile long lagNanos;
+        private final AtomicLong maxLagNanos = new AtomicLong();
+
+        TopicStats(String filter) {
+            this.filter = filter;
+        }
+
+        // the topics matching the filter land on different stripes, so this runs on several threads at once
+        void started(long lag) {
+            queued.decrementAndGet();
+            handled.incrementAndGet();
+            lagNanos = lag;
+            maxLagNanos.accumulateAndGet(lag, Math::max);
+        }
+
+        void dropped() {
+            queued.decrementAndGet();
+            long count = dropped.incrementAndGet();
+            if (count == 1 || count % 1000 == 0) {
+                log.warn("Dispatch queue full, {} messages of {} dropped so far", count, filter);
+            }
+        }
+
+        TopicMetrics snapshot() {
+            return new TopicMetrics(queued.get(), TimeUnit.NANOSECONDS.toMillis(lagNanos),
+                    TimeUnit.NANOSECONDS.toMillis(maxLagNanos.get()), handled.get(), dropped.get());
+        }
+    }
+}
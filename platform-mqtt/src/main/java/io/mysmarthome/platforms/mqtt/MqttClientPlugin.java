@@ -1,5 +1,8 @@
 package io.mysmarthome.platforms.mqtt;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import io.mysmarthome.configuration.ApplicationProperties;
 import io.mysmarthome.device.Device;
 import io.mysmarthome.platform.PlatformPlugin;
@@ -16,14 +19,14 @@ import org.pf4j.Extension;
 import org.pf4j.Plugin;
 import org.pf4j.PluginWrapper;
 
-import java.util.HashMap;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 
-import static io.mysmarthome.util.SneakyException.sneakyException;
-
 @Slf4j
 public class MqttClientPlugin extends Plugin {
 
@@ -33,38 +36,79 @@ public class MqttClientPlugin extends Plugin {
 
     @Extension
     public static class MqttClient implements PlatformPlugin<MqttDevice> {
+        private static final ObjectWriter JSON_WRITER = new ObjectMapper().writer();
+
         private SimpleMqttClient mqttClient = null;
-        private final Map<String, DeviceHandler> handlers = new HashMap<>();
+        // by listen topic, which may have wildcards
+        private final TopicTrie<DeviceHandler> handlers = new TopicTrie<>();
+        private final PendingRequests pendingRequests = new PendingRequests();
+        private MessageDispatcher dispatcher;
+        private Duration responseTimeout;
 
         @Override
         public void start(ApplicationProperties config) {
-            initMqttClient(config.getString("mqtt.broker.url"));
+            dispatcher = new MessageDispatcher(
+                    config.getInt("mqtt.dispatchThreads", Runtime.getRuntime().availableProcessors()),
+                    config.getInt("mqtt.dispatchQueueSize", 1000),
+                    Optional.ofNullable(config.getString("mqtt.overflowPolicy"))
+                            .map(MessageDispatcher.OverflowPolicy::parse)
+                            .orElse(MessageDispatcher.OverflowPolicy.BLOCK));
+            dispatcher.start();
+            responseTimeout = Duration.ofSeconds(config.getInt("mqtt.responseTimeout", 10));
+            initMqttClient(config.getString("mqtt.broker.url"),
+                    config.getInt("mqtt.maxInflight", 100),
+                    config.getInt("mqtt.outboundQueueSize", 1000));
+        }
+
+        /**
+         * @return queue depth, lag and dropped messages by listen topic
+         */
+        public Map<String, MessageDispatcher.TopicMetrics> getDispatchMetrics() {
+            return dispatcher.getMetrics();
         }
 
         @Override
         public void onRegisterDevice(MqttDevice device, final OnReceive callback) {
             log.info("Register device '{}' for mqtt plugin", device.getDeviceId());
             Optional.ofNullable(device.getListenTopic())
-                    .ifPresent(topic -> handlers.put(topic, DeviceHandler.builder()
-                            .device(device)
-                            .callback(callback)
-                            .build()));
+                    .ifPresent(topic -> {
+                        handlers.put(topic, DeviceHandler.builder()
+                                .device(device)
+                                .callback(callback)
+                                .build());
+                        mqttClient.subscribe(topic);
+                    });
         }
 
-        private void initMqttClient(String url) {
+        private void initMqttClient(String url, int maxInflight, int outboundQueueSize) {
             try {
                 log.info("Mqtt url: {}", url);
-                mqttClient = new SimpleMqttClient(url);
-                mqttClient.connect();
-
-                mqttClient.subscribe("#", (topic, message) -> {
-                    if (handlers.containsKey(topic) && handlers.get(topic) != null) {
-                        log.info("Receive data to topic {}", topic);
-                        handlers.get(topic).broadcastMessage(ReceivedMessage.builder()
-                                .message(new String(message.getPayload()))
-                                .build());
+                mqttClient = new SimpleMqttClient(url, maxInflight, outboundQueueSize);
+                // only the listen topics of the devices are subscribed, each message goes to the matching ones
+                mqttClient.setListener((topic, message) -> {
+                    List<DeviceHandler> matching = new ArrayList<>(1);
+                    ObjectHolder<String> matchedFilter = new ObjectHolder<>();
+                    handlers.forEachMatchingFilter(topic, (filter, handler) -> {
+                        matching.add(handler);
+                        matchedFilter.set(filter);
+                    });
+                    String filter = matching.isEmpty() ? pendingRequests.findFilter(topic) : matchedFilter.get();
+                    if (filter == null) {
+                        return;
                     }
+                    // the handlers run on the dispatcher, the client thread only queues the message
+                    dispatcher.dispatch(topic, filter, () -> {
+                        log.info("Receive data to topic {}", topic);
+                        MqttPayload payload = new MqttPayload(message.getPayload());
+                        // handlers get the text, as they always did, the payload does not leave the plugin
+                        ReceivedMessage received = ReceivedMessage.builder()
+                                .message(payload.toString())
+                                .build();
+                        matching.forEach(handler -> handler.broadcastMessage(received));
+                        pendingRequests.complete(topic, payload, received);
+                    });
                 });
+                mqttClient.start();
             } catch (MqttException e) {
                 throw new SimpleMqttClientException("Error on initialize mqtt client", e);
             }
@@ -84,45 +128,61 @@ public class MqttClientPlugin extends Plugin {
 
             String subTopic = device.getListenTopic();
             if (StringUtils.isBlank(subTopic)) {
-                publish(pubTopic, payload);
-                return CompletableFuture.supplyAsync(Optional::empty);
+                return publish(device, pubTopic, payload)
+                        .thenApply(r -> Optional.empty());
             }
 
-            Object lock = new Object();
-            ObjectHolder<ReceivedMessage> holder = new ObjectHolder<>();
+            // registered before publishing, the response may come before the publish returns
+            String correlationField = device.getCorrelationField();
+            String correlationId = getCorrelationId(correlationField, payload);
+            CompletableFuture<ReceivedMessage> response = pendingRequests.register(subTopic, correlationField,
+                    correlationId, device.getResponseTimeout().orElse(responseTimeout));
+            mqttClient.subscribe(subTopic);
+            publish(device, pubTopic, payload)
+                    .whenComplete((r, e) -> {
+                        if (e != null) {
+                            response.completeExceptionally(e);
+                        }
+                    });
+            return response.thenApply(Optional::of);
+        }
 
-            if (!handlers.containsKey(subTopic)) {
-                handlers.put(subTopic, DeviceHandler.builder()
-                        .device(device)
-                        .callback(null)
-                        .build());
+        private String getCorrelationId(String correlationField, Object payload) {
+            if (correlationField == null || !(payload instanceof Map)) {
+                return null;
             }
-
-            handlers.get(subTopic).addTempCallback((d, msg) -> {
-                synchronized (lock) {
-                    holder.set(msg);
-                    lock.notify();
-                }
-            });
-
-            return CompletableFuture.supplyAsync(sneakyException(() -> {
-                publish(pubTopic, payload);
-
-                synchronized (lock) {
-                    lock.wait();
-                    return Optional.ofNullable(holder.get());
-                }
-            }));
+            return Optional.ofNullable(((Map<?, ?>) payload).get(correlationField))
+                    .map(Objects::toString)
+                    .orElse(null);
         }
 
-        private void publish(String topic, Object payload) {
+        private CompletableFuture<Void> publish(MqttDevice device, String topic, Object payload) {
             log.info("Send data on topic {}", topic);
-            mqttClient.publisher()
+            String msg;
+            try {
+                msg = toMessage(payload);
+            } catch (JsonProcessingException e) {
+                return CompletableFuture.failedFuture(
+                        new SimpleMqttClientException("Error serializing payload for topic " + topic, e));
+            }
+            return mqttClient.publisher()
                     .topic(topic)
-                    .msg(payload == null ? null : Objects.toString(payload))
+                    .msg(msg)
+                    .qos(device.getQos())
+                    .retained(device.isRetained())
                     .publish();
         }
 
+        /**
+         * A map is sent as JSON, the response carries its correlation id back in a JSON payload.
+         */
+        private String toMessage(Object payload) throws JsonProcessingException {
+            if (payload instanceof Map) {
+                return JSON_WRITER.writeValueAsString(payload);
+            }
+            return payload == null ? null : Objects.toString(payload);
+        }
+
         @Override
         public void shutdown() {
             try {
@@ -130,6 +190,7 @@ public class MqttClientPlugin extends Plugin {
             } catch (MqttException e) {
                 log.info("Mqtt client shutdown");
             }
+            dispatcher.stop();
         }
 
         @Override
@@ -4,6 +4,9 @@ import io.mysmarthome.device.Device;
 import io.mysmarthome.util.TypedValue;
 import lombok.AllArgsConstructor;
 
+import java.time.Duration;
+import java.util.Optional;
+
 @AllArgsConstructor
 public class MqttDevice implements Device {
 
@@ -26,4 +29,26 @@ public class MqttDevice implements Device {
     public String getListenTopic() {
         return getCustomInfo("listenTopic").asString();
     }
+
+    /**
+     * @return field of the JSON response holding the same value as the field of the request, or null when the
+     * next message on the listen topic is the response
+     */
+    public String getCorrelationField() {
+        return getCustomInfo("correlationField").asString();
+    }
+
+    public Optional<Duration> getResponseTimeout() {
+        return Optional.ofNullable(getCustomInfo("responseTimeout").asString())
+                .map(Integer::parseInt)
+                .map(Duration::ofSeconds);
+    }
+
+    public int getQos() {
+        return Integer.parseInt(getCustomInfo("qos").asString("0"));
+    }
+
+    public boolean isRetained() {
+        return Boolean.parseBoolean(getCustomInfo("retained").asString("true"));
+    }
 }
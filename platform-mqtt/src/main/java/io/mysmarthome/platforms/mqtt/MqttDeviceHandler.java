@@ -10,6 +10,7 @@ import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 
@@ -39,7 +40,7 @@ public class MqttDeviceHandler {
 
     public void broadcastMessage(MqttMessage mqttMsg) {
         ReceivedMessage message = ReceivedMessage.builder()
-                .message(new String(mqttMsg.getPayload()))
+                .message(new String(mqttMsg.getPayload(), StandardCharsets.UTF_8))
                 .build();
 
         try {
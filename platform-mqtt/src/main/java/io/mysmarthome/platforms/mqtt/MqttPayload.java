@@ -0,0 +1,99 @@
+package io.mysmarthome.platforms.mqtt;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.node.MissingNode;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+/**
+ * Payload of a received message, a view over the bytes given by the mqtt client. Routing a message does not
+ * decode it, the text is decoded as UTF-8 on first use and the JSON is parsed on first use, both only once.
+ * Two payloads with the same text are equal. It stays inside the plugin, the handlers are given its text.
+ */
+public final class MqttPayload implements CharSequence {
+
+    private static final ObjectReader JSON_READER = new ObjectMapper().reader();
+    // parsed already, it is not JSON
+    private static final JsonNode NOT_JSON = MissingNode.getInstance();
+
+    private final byte[] bytes;
+    private volatile String text;
+    private volatile JsonNode json;
+
+    /**
+     * @param bytes not copied, they must not be modified afterwards
+     */
+    public MqttPayload(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * @return the bytes themselves, not a copy
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the payload parsed as JSON, empty when it is not JSON
+     */
+    public Optional<JsonNode> asJson() {
+        JsonNode parsed = json;
+        if (parsed == null) {
+            try {
+                parsed = JSON_READER.readTree(bytes);
+            } catch (IOException e) {
+                parsed = null;
+            }
+            parsed = parsed == null ? NOT_JSON : parsed;
+            json = parsed;
+        }
+        return parsed == NOT_JSON ? Optional.empty() : Optional.of(parsed);
+    }
+
+    @Override
+    public int length() {
+        return toString().length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        return toString().equals(o.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        String decoded = text;
+        if (decoded == null) {
+            // two threads may both decode it, they get equal strings
+            decoded = new String(bytes, StandardCharsets.UTF_8);
+            text = decoded;
+        }
+        return decoded;
+    }
+}
@@ -0,0 +1,106 @@
+package io.mysmarthome.platforms.mqtt;
+
+import io.mysmarthome.platform.message.ReceivedMessage;
+import io.mysmarthome.util.ObjectHolder;
+
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Requests waiting for their response, by the topic filter the response comes on. A message completes the oldest
+ * request waiting on a matching filter. When the request has a correlation id, the message must also carry it in
+ * the correlation field of its JSON payload, so concurrent requests to the same device each get their own
+ * response. Nothing blocks while waiting, a request that gets no response fails with a TimeoutException.
+ */
+public class PendingRequests {
+
+    private final TopicTrie<Queue<PendingRequest>> pending = new TopicTrie<>();
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * @param correlationField field of the response payload holding the correlation id, or null
+     * @param correlationId    id the response must carry, or null to take the next message
+     */
+    public CompletableFuture<ReceivedMessage> register(String topicFilter, String correlationField,
+                                                       String correlationId, Duration timeout) {
+        Queue<PendingRequest> queue = pending.computeIfAbsent(topicFilter, f -> new ConcurrentLinkedQueue<>());
+        PendingRequest request = new PendingRequest(correlationField, correlationId);
+        queue.add(request);
+        count.incrementAndGet();
+
+        request.response
+                .orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS)
+                .whenComplete((r, e) -> {
+                    if (queue.remove(request)) {
+                        count.decrementAndGet();
+                    }
+                });
+        return request.response;
+    }
+
+    public boolean isEmpty() {
+        return count.get() == 0;
+    }
+
+    /**
+     * @return a filter matching the topic with requests waiting on it, or null
+     */
+    public String findFilter(String topic) {
+        if (isEmpty()) {
+            return null;
+        }
+        ObjectHolder<String> found = new ObjectHolder<>();
+        pending.forEachMatchingFilter(topic, (filter, queue) -> {
+            if (!queue.isEmpty()) {
+                found.set(filter);
+            }
+        });
+        return found.get();
+    }
+
+    /**
+     * Completes the requests waiting for a message of the topic.
+     */
+    public void complete(String topic, MqttPayload payload, ReceivedMessage message) {
+        if (isEmpty()) {
+            return;
+        }
+        pending.forEachMatch(topic, queue -> {
+            for (PendingRequest request : queue) {
+                if (matches(request, payload) && queue.remove(request)) {
+                    count.decrementAndGet();
+                    // false when it timed out and was not removed yet, the next one gets the message
+                    if (request.response.complete(message)) {
+                        return;
+                    }
+                }
+            }
+        });
+    }
+
+    private boolean matches(PendingRequest request, MqttPayload payload) {
+        if (request.correlationId == null) {
+            return true;
+        }
+        // parsed once for all the requests waiting on the topic
+        return payload.asJson()
+                .map(json -> json.get(request.correlationField))
+                .filter(field -> field.isValueNode() && request.correlationId.equals(field.asText()))
+                .isPresent();
+    }
+
+    private static class PendingRequest {
+        private final String correlationField;
+        private final String correlationId;
+        private final CompletableFuture<ReceivedMessage> response = new CompletableFuture<>();
+
+        PendingRequest(String correlationField, String correlationId) {
+            this.correlationField = correlationField;
+            this.correlationId = correlationId;
+        }
+    }
+}
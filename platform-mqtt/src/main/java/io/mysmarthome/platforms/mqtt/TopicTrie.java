@@ -0,0 +1,131 @@
+package io.mysmarthome.platforms.mqtt;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Values by topic filter, one level of the topic per node. A filter may use the MQTT wildcards: + matches exactly
+ * one level and # matches all the remaining levels, the parent level included. Matching a topic takes no lock, so
+ * filters can be added while messages are routed.
+ */
+public class TopicTrie<T> {
+
+    private static final String SINGLE_LEVEL = "+";
+    private static final String MULTI_LEVEL = "#";
+
+    private final Node<T> root = new Node<>();
+
+    public T get(String filter) {
+        Node<T> node = root;
+        for (String level : split(filter)) {
+            node = node.children.get(level);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node.value;
+    }
+
+    /**
+     * @return the previous value of the filter
+     */
+    public T put(String filter, T value) {
+        Node<T> node = getOrCreate(filter);
+        synchronized (node) {
+            T previous = node.value;
+            node.value = value;
+            return previous;
+        }
+    }
+
+    public T computeIfAbsent(String filter, Function<String, T> factory) {
+        Node<T> node = getOrCreate(filter);
+        synchronized (node) {
+            if (node.value == null) {
+                node.value = factory.apply(filter);
+            }
+            return node.value;
+        }
+    }
+
+    /**
+     * Calls the action with the value of every filter matching the topic. As in MQTT, the wildcards of the first
+     * level do not match the topics starting with $.
+     */
+    public void forEachMatch(String topic, Consumer<T> action) {
+        match(root, topic, 0, (filter, value) -> action.accept(value));
+    }
+
+    /**
+     * Same as {@link #forEachMatch(String, Consumer)}, with the filter that matched.
+     */
+    public void forEachMatchingFilter(String topic, BiConsumer<String, T> action) {
+        match(root, topic, 0, action);
+    }
+
+    /**
+     * @param from start of the next level of the topic, past its end when all the levels were matched
+     */
+    private void match(Node<T> node, String topic, int from, BiConsumer<String, T> action) {
+        boolean wildcards = from > 0 || !topic.startsWith("$");
+        Node<T> multi = node.children.get(MULTI_LEVEL);
+        if (multi != null && wildcards) {
+            accept(multi, action);
+        }
+        if (from > topic.length()) {
+            accept(node, action);
+            return;
+        }
+
+        int end = topic.indexOf('/', from);
+        if (end < 0) {
+            end = topic.length();
+        }
+        Node<T> exact = node.children.get(topic.substring(from, end));
+        if (exact != null) {
+            match(exact, topic, end + 1, action);
+        }
+        Node<T> single = node.children.get(SINGLE_LEVEL);
+        if (single != null && wildcards) {
+            match(single, topic, end + 1, action);
+        }
+    }
+
+    private Node<T> getOrCreate(String filter) {
+        String[] levels = split(filter);
+        for (int i = 0; i < levels.length; i++) {
+            if (levels[i].equals(MULTI_LEVEL) && i != levels.length - 1
+                    || levels[i].length() > 1 && (levels[i].contains(MULTI_LEVEL) || levels[i].contains(SINGLE_LEVEL))) {
+                throw new IllegalArgumentException("Invalid topic filter '" + filter + "'");
+            }
+        }
+
+        Node<T> node = root;
+        for (String level : levels) {
+            node = node.children.computeIfAbsent(level, l -> new Node<>());
+        }
+        node.filter = filter;
+        return node;
+    }
+
+    private static String[] split(String filter) {
+        // keeps the empty levels, "a//b" has three
+        return filter.split("/", -1);
+    }
+
+    private static <T> void accept(Node<T> node, BiConsumer<String, T> action) {
+        T value = node.value;
+        if (value != null) {
+            action.accept(node.filter, value);
+        }
+    }
+
+    private static class Node<T> {
+        private final ConcurrentHashMap<String, Node<T>> children = new ConcurrentHashMap<>();
+        // written before the value, so it is set once the value is seen
+        private volatile String filter;
+        private volatile T value;
+    }
+}
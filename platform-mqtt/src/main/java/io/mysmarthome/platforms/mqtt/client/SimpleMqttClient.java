@@ -1,49 +1,153 @@
 package io.mysmarthome.platforms.mqtt.client;
 
 import lombok.RequiredArgsConstructor;
-import org.eclipse.paho.client.mqttv3.MqttClient;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.paho.client.mqttv3.DisconnectedBufferOptions;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
-import static io.mysmarthome.util.SneakyException.sneakyException;
+/**
+ * Asynchronous mqtt client. Messages to publish go through a bounded queue drained by a single writer thread,
+ * which keeps at most maxInflight messages unacknowledged by the broker, and each message gets a future completed
+ * once the broker has it, as far as its QoS tells. The futures are completed on a thread of their own, what the
+ * caller chains to them never runs on, nor holds up, the threads of the mqtt client.
+ */
+@Slf4j
+public class SimpleMqttClient extends MqttAsyncClient {
 
-public class SimpleMqttClient extends MqttClient {
+    private static final int SUBSCRIPTION_QOS = 1;
+    private static final long CONNECTION_TIMEOUT_MILLIS = 10_000;
+    private static final long DISCONNECT_TIMEOUT_MILLIS = 1000;
 
-    public SimpleMqttClient(String url) throws MqttException {
-        super(url, MqttClient.generateClientId(), new MemoryPersistence());
+    private final Set<String> subscriptions = ConcurrentHashMap.newKeySet();
+    private final int maxInflight;
+    private final BlockingQueue<Outbound> outbound;
+    private final Semaphore inflight;
+    private final Thread writer;
+    private final ExecutorService completions = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "mqtt-publish-completion");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean closed = false;
+    private volatile IMqttMessageListener listener = (topic, message) -> {
+    };
+
+    /**
+     * @param maxInflight messages published and not yet acknowledged by the broker
+     * @param queueSize   messages waiting to be published, beyond which publishing fails
+     */
+    public SimpleMqttClient(String url, int maxInflight, int queueSize) throws MqttException {
+        super(url, MqttAsyncClient.generateClientId(), new MemoryPersistence());
+        this.maxInflight = maxInflight;
+        this.outbound = new ArrayBlockingQueue<>(queueSize);
+        this.inflight = new Semaphore(maxInflight);
+        this.writer = new Thread(this::write, "mqtt-publisher");
+        this.writer.setDaemon(true);
+        setCallback(new Callback());
     }
 
-    @Override
-    public void connect() throws MqttException {
+    /**
+     * Receives the messages of all the subscriptions.
+     */
+    public void setListener(IMqttMessageListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Subscribes to the topic filter, unless already subscribed. The filter is kept whatever happens: the
+     * subscriptions are all made again on every connection, the session is not kept by the broker, so a filter
+     * added while disconnected, or whose subscription failed, is subscribed on the next one.
+     */
+    public void subscribe(String topicFilter) {
+        if (!subscriptions.add(topicFilter) || !isConnected()) {
+            return;
+        }
+        try {
+            subscribe(topicFilter, SUBSCRIPTION_QOS, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken token) {
+                }
+
+                @Override
+                public void onFailure(IMqttToken token, Throwable e) {
+                    log.error("Error subscribing to {}, trying again on the next connection", topicFilter, e);
+                }
+            });
+        } catch (MqttException e) {
+            log.error("Error subscribing to {}, trying again on the next connection", topicFilter, e);
+        }
+    }
+
+    /**
+     * Connects to the broker, waiting for the connection, and starts the writer.
+     */
+    public void start() throws MqttException {
         // default options
         MqttConnectOptions options = new MqttConnectOptions();
         options.setAutomaticReconnect(true);
         options.setCleanSession(true);
         options.setConnectionTimeout(10);
+        options.setMaxInflight(maxInflight);
 
-        super.setTimeToWait(1000);
+        // while reconnecting the messages wait in the client, the writer stops once maxInflight of them do
+        DisconnectedBufferOptions bufferOptions = new DisconnectedBufferOptions();
+        bufferOptions.setBufferEnabled(true);
+        bufferOptions.setBufferSize(maxInflight);
+        bufferOptions.setDeleteOldestMessages(false);
+        bufferOptions.setPersistBuffer(false);
+        setBufferOpts(bufferOptions);
 
-        super.connect(options);
+        connect(options).waitForCompletion(CONNECTION_TIMEOUT_MILLIS);
+        writer.start();
     }
 
     @Override
     public void close() throws MqttException {
+        closed = true;
+        writer.interrupt();
+        if (!writer.isAlive()) {
+            // never started, or already gone, nobody else fails the queued messages
+            failQueued();
+        }
         if (isConnected()) {
-            disconnect();
+            disconnect().waitForCompletion(DISCONNECT_TIMEOUT_MILLIS);
         }
         super.close(true);
+        completions.shutdown();
     }
 
     @RequiredArgsConstructor
     public static class Publisher {
         private final SimpleMqttClient mqttClient;
         private String topic;
-        private MqttMessage msg;
+        private String payload;
+        private int qos = 0;
+        private boolean retained = true;
 
         public Publisher topic(String topic) {
             this.topic = topic;
@@ -51,27 +155,142 @@ public class SimpleMqttClient extends MqttClient {
         }
 
         public Publisher msg(String msg) {
-            this.msg = prepareMessage(msg);
+            this.payload = msg;
             return this;
         }
 
-        private MqttMessage prepareMessage(String payload) {
+        public Publisher qos(int qos) {
+            this.qos = qos;
+            return this;
+        }
+
+        public Publisher retained(boolean retained) {
+            this.retained = retained;
+            return this;
+        }
+
+        private MqttMessage prepareMessage() {
             MqttMessage msg = Objects.isNull(payload) ?
                     new MqttMessage() :
-                    new MqttMessage(payload.getBytes());
+                    new MqttMessage(payload.getBytes(StandardCharsets.UTF_8));
 
-            msg.setQos(0);
-            msg.setRetained(true);
+            msg.setQos(qos);
+            msg.setRetained(retained);
             return msg;
         }
 
-        public void publish() {
-            Executors.defaultThreadFactory()
-                    .newThread(sneakyException(() -> mqttClient.publish(topic, msg)));
+        /**
+         * Queues the message, without waiting.
+         *
+         * @return completes once the broker has the message, fails when it could not be published or the queue
+         * is full
+         */
+        public CompletableFuture<Void> publish() {
+            Outbound message = new Outbound(topic, prepareMessage());
+            if (!mqttClient.outbound.offer(message)) {
+                message.result.completeExceptionally(
+                        new SimpleMqttClientException("Outbound queue full, message to " + topic + " dropped"));
+            } else if (mqttClient.closed) {
+                // queued while closing, after the queue was emptied
+                mqttClient.failQueued();
+            }
+            return message.result;
         }
     }
 
     public Publisher publisher() {
         return new Publisher(this);
     }
+
+    private void write() {
+        Deque<Outbound> batch = new ArrayDeque<>();
+        try {
+            while (true) {
+                batch.add(outbound.take());
+                outbound.drainTo(batch, maxInflight);
+                while (!batch.isEmpty()) {
+                    inflight.acquire();
+                    send(batch.poll());
+                }
+            }
+        } catch (InterruptedException e) {
+            batch.forEach(SimpleMqttClient::fail);
+            failQueued();
+        }
+    }
+
+    private void failQueued() {
+        List<Outbound> queued = new ArrayList<>();
+        outbound.drainTo(queued);
+        queued.forEach(SimpleMqttClient::fail);
+    }
+
+    private static void fail(Outbound message) {
+        message.result.completeExceptionally(new SimpleMqttClientException("Mqtt client closed"));
+    }
+
+    private void send(Outbound message) {
+        try {
+            publish(message.topic, message.message, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken token) {
+                    inflight.release();
+                    message.result.completeAsync(() -> null, completions);
+                }
+
+                @Override
+                public void onFailure(IMqttToken token, Throwable e) {
+                    inflight.release();
+                    completions.execute(() -> message.result.completeExceptionally(e));
+                }
+            });
+        } catch (MqttException e) {
+            inflight.release();
+            message.result.completeExceptionally(e);
+        }
+    }
+
+    private static class Outbound {
+        private final String topic;
+        private final MqttMessage message;
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        Outbound(String topic, MqttMessage message) {
+            this.topic = topic;
+            this.message = message;
+        }
+    }
+
+    private class Callback implements MqttCallbackExtended {
+
+        @Override
+        public void connectComplete(boolean reconnect, String serverURI) {
+            if (subscriptions.isEmpty()) {
+                return;
+            }
+            String[] topicFilters = subscriptions.toArray(new String[0]);
+            int[] qos = new int[topicFilters.length];
+            Arrays.fill(qos, SUBSCRIPTION_QOS);
+            try {
+                subscribe(topicFilters, qos);
+                log.info("Subscribing to {} topics on {}", topicFilters.length, serverURI);
+            } catch (MqttException e) {
+                log.error("Error subscribing again to {}", serverURI, e);
+            }
+        }
+
+        @Override
+        public void connectionLost(Throwable cause) {
+            log.warn("Connection to the mqtt broker lost", cause);
+        }
+
+        @Override
+        public void messageArrived(String topic, MqttMessage message) throws Exception {
+            listener.messageArrived(topic, message);
+        }
+
+        @Override
+        public void deliveryComplete(IMqttDeliveryToken token) {
+        }
+    }
 }
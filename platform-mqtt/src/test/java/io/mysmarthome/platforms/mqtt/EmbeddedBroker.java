@@ -0,0 +1,40 @@
+package io.mysmarthome.platforms.mqtt;
+
+import io.moquette.broker.Server;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Properties;
+
+/**
+ * An in-memory Moquette broker on a free local port, for the tests that need a real broker.
+ */
+public class EmbeddedBroker implements AutoCloseable {
+
+    private final Server server = new Server();
+    private final int port;
+
+    public EmbeddedBroker() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        Properties config = new Properties();
+        config.setProperty("host", "127.0.0.1");
+        config.setProperty("port", Integer.toString(port));
+        config.setProperty("allow_anonymous", "true");
+        // no persistent store, the sessions and retained messages stay in memory
+        config.setProperty("persistent_store", "");
+        // otherwise the writes to the clients are flushed by a timer, which caps the rate of a subscription
+        config.setProperty("immediate_buffer_flush", "true");
+        server.startServer(config);
+    }
+
+    public String getUrl() {
+        return "tcp://127.0.0.1:" + port;
+    }
+
+    @Override
+    public void close() {
+        server.stopServer();
+    }
+}
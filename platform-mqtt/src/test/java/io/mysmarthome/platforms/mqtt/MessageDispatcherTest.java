@@ -0,0 +1,133 @@
+package io.mysmarthome.platforms.mqtt;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageDispatcherTest {
+
+    private MessageDispatcher dispatcher;
+
+    @AfterEach
+    void tearDown() {
+        dispatcher.stop();
+    }
+
+    @Test
+    void messagesOfATopicAreHandledInOrder() throws Exception {
+        start(4, 100, MessageDispatcher.OverflowPolicy.BLOCK);
+        List<Integer> handled = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(50);
+
+        for (int i = 0; i < 50; i++) {
+            int n = i;
+            dispatcher.dispatch("home/kitchen/temp", "home/+/temp", () -> {
+                handled.add(n);
+                done.countDown();
+            });
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i, handled.get(i));
+        }
+    }
+
+    @Test
+    void dropOldestKeepsTheLatestMessages() throws Exception {
+        start(1, 2, MessageDispatcher.OverflowPolicy.DROP_OLDEST);
+        List<Integer> handled = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch gate = new CountDownLatch(1);
+        CountDownLatch busy = new CountDownLatch(1);
+        dispatcher.dispatch("a/b", "a/b", () -> {
+            busy.countDown();
+            await(gate);
+        });
+        assertTrue(busy.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 5; i++) {
+            int n = i;
+            dispatcher.dispatch("a/b", "a/b", () -> handled.add(n));
+        }
+        CountDownLatch done = new CountDownLatch(1);
+        dispatcher.dispatch("a/b", "a/b", done::countDown);
+        gate.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of(4), handled);
+        assertEquals(4, dispatcher.getMetrics().get("a/b").getDropped());
+    }
+
+    @Test
+    void dropNewestKeepsTheQueuedMessages() throws Exception {
+        start(1, 2, MessageDispatcher.OverflowPolicy.DROP_NEWEST);
+        List<Integer> handled = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch gate = new CountDownLatch(1);
+        CountDownLatch busy = new CountDownLatch(1);
+        dispatcher.dispatch("a/b", "a/b", () -> {
+            busy.countDown();
+            await(gate);
+        });
+        assertTrue(busy.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 5; i++) {
+            int n = i;
+            dispatcher.dispatch("a/b", "a/b", () -> handled.add(n));
+        }
+        gate.countDown();
+
+        assertTrue(waitFor(() -> handled.size() == 2));
+        assertEquals(List.of(0, 1), handled);
+        assertEquals(3, dispatcher.getMetrics().get("a/b").getDropped());
+    }
+
+    @Test
+    void metricsAreKeptByFilterWhateverTheTopics() throws Exception {
+        start(2, 100, MessageDispatcher.OverflowPolicy.BLOCK);
+        CountDownLatch done = new CountDownLatch(100);
+
+        for (int i = 0; i < 100; i++) {
+            dispatcher.dispatch("sensors/" + i + "/temp", "sensors/#", done::countDown);
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(waitFor(() -> dispatcher.getMetrics().get("sensors/#").getHandled() == 100));
+        Map<String, MessageDispatcher.TopicMetrics> metrics = dispatcher.getMetrics();
+        assertEquals(1, metrics.size());
+        assertEquals(0, metrics.get("sensors/#").getQueueDepth());
+    }
+
+    private void start(int threads, int queueSize, MessageDispatcher.OverflowPolicy policy) {
+        dispatcher = new MessageDispatcher(threads, queueSize, policy);
+        dispatcher.start();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() - deadline > 0) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+}
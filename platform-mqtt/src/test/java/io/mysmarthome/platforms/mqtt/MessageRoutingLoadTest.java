@@ -0,0 +1,155 @@
+package io.mysmarthome.platforms.mqtt;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 1000 registered devices and a broker sending 10k messages per second, half of them on topics no device listens
+ * to. Every message is routed as the plugin does: matched against the trie, then queued on the dispatcher. Prints
+ * the rate achieved, the CPU the routing takes on the client thread and the time from arrival to handling.
+ */
+@Tag("load")
+class MessageRoutingLoadTest {
+
+    private static final int DEVICES = 1000;
+    private static final int RATE = 10_000;
+    private static final int SECONDS = 10;
+    private static final int TOPICS = 10_000;
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final MessageDispatcher dispatcher = new MessageDispatcher(Runtime.getRuntime().availableProcessors(),
+            1000, MessageDispatcher.OverflowPolicy.BLOCK);
+
+    @AfterEach
+    void tearDown() {
+        dispatcher.stop();
+    }
+
+    @Test
+    void tenThousandMessagesPerSecond() throws Exception {
+        TopicTrie<Integer> handlers = new TopicTrie<>();
+        for (int i = 0; i < DEVICES; i++) {
+            handlers.put(listenTopic(i), i);
+        }
+        String[] topics = topics();
+        dispatcher.start();
+
+        // the trie alone, as fast as it goes
+        AtomicLong matches = new AtomicLong();
+        long start = System.nanoTime();
+        for (int round = 0; round < 100; round++) {
+            for (String topic : topics) {
+                handlers.forEachMatch(topic, device -> matches.incrementAndGet());
+            }
+        }
+        double matchRate = 100.0 * topics.length / ((System.nanoTime() - start) / 1e9);
+
+        int messages = RATE * SECONDS;
+        AtomicLongArray latencies = new AtomicLongArray(messages);
+        AtomicLong handled = new AtomicLong();
+        long routed = 0;
+        long period = TimeUnit.SECONDS.toNanos(1) / RATE;
+        long cpuStart = threads.getCurrentThreadCpuTime();
+        start = System.nanoTime();
+        long next = start;
+        for (int n = 0; n < messages; n++) {
+            String topic = topics[n % topics.length];
+            long arrival = System.nanoTime();
+            List<Integer> matching = new ArrayList<>(1);
+            String[] matchedFilter = new String[1];
+            handlers.forEachMatchingFilter(topic, (filter, device) -> {
+                matching.add(device);
+                matchedFilter[0] = filter;
+            });
+            if (!matching.isEmpty()) {
+                int message = n;
+                routed++;
+                dispatcher.dispatch(topic, matchedFilter[0], () -> {
+                    latencies.set(message, System.nanoTime() - arrival);
+                    handled.incrementAndGet();
+                });
+            }
+            next += period;
+            LockSupport.parkNanos(next - System.nanoTime());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long cpu = threads.getCurrentThreadCpuTime() - cpuStart;
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (handled.get() < routed && System.nanoTime() - deadline < 0) {
+            Thread.sleep(10);
+        }
+        long[] sorted = new long[(int) routed];
+        for (int n = 0, i = 0; n < messages; n++) {
+            if (latencies.get(n) > 0) {
+                sorted[i++] = latencies.get(n);
+            }
+        }
+        Arrays.sort(sorted);
+        long maxLag = dispatcher.getMetrics().values().stream()
+                .mapToLong(MessageDispatcher.TopicMetrics::getMaxLagMillis)
+                .max()
+                .orElse(0);
+
+        System.out.printf("%d devices, %d messages at %d msgs/s, %d dispatch threads%n", DEVICES, messages, RATE,
+                Runtime.getRuntime().availableProcessors());
+        System.out.printf("trie alone: %.0f topics matched/s%n", matchRate);
+        System.out.printf("routing: %.0f msgs/s achieved, %d routed, %d for nobody, %.2f us CPU per message "
+                        + "on the client thread (%.1f%% of a core)%n", messages / seconds, routed, messages - routed,
+                cpu / 1e3 / messages, cpu / 1e9 / seconds * 100);
+        System.out.printf("arrival to handling: median %.3f ms, p99 %.3f ms, max %.3f ms, max dispatcher lag %d ms%n",
+                sorted[sorted.length / 2] / 1e6, sorted[sorted.length * 99 / 100] / 1e6,
+                sorted[sorted.length - 1] / 1e6, maxLag);
+
+        assertEquals(routed, handled.get());
+        assertTrue(messages / seconds > RATE * 0.95);
+    }
+
+    /**
+     * Mostly exact topics, as with Zigbee2MQTT, some with a + for a level, and a few devices taking a whole subtree.
+     */
+    private static String listenTopic(int device) {
+        if (device % 100 == 0) {
+            return "frigate/camera-" + device + "/#";
+        }
+        if (device % 10 == 0) {
+            return "home/+/sensor-" + device;
+        }
+        return "zigbee2mqtt/device-" + device;
+    }
+
+    /**
+     * Half the topics go to a device, the others to devices nobody registered.
+     */
+    private static String[] topics() {
+        Random random = new Random(0);
+        String[] topics = new String[TOPICS];
+        for (int i = 0; i < TOPICS; i++) {
+            int device = random.nextInt(DEVICES);
+            boolean registered = i % 2 == 0;
+            if (device % 100 == 0) {
+                topics[i] = registered ? "frigate/camera-" + device + "/events/motion" : "frigate/stats";
+            } else if (device % 10 == 0) {
+                topics[i] = "home/room-" + random.nextInt(20) + "/sensor-" + (registered ? device : device + 1);
+            } else {
+                topics[i] = "zigbee2mqtt/" + (registered ? "device-" : "unknown-") + device;
+            }
+        }
+        return topics;
+    }
+}
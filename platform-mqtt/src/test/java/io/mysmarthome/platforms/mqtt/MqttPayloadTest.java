@@ -0,0 +1,35 @@
+package io.mysmarthome.platforms.mqtt;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class MqttPayloadTest {
+
+    @Test
+    void textIsDecodedAsUtf8() {
+        assertEquals("temp\u00e9rature 21\u00b0", payload("temp\u00e9rature 21\u00b0").toString());
+    }
+
+    @Test
+    void jsonIsParsedOnce() {
+        MqttPayload payload = payload("{\"state\": \"on\"}");
+
+        assertEquals("on", payload.asJson().orElseThrow().get("state").asText());
+        assertSame(payload.asJson().orElseThrow(), payload.asJson().orElseThrow());
+    }
+
+    @Test
+    void textAndEmptyPayloadsAreNotJson() {
+        assertFalse(payload("on").asJson().isPresent());
+        assertFalse(payload("").asJson().isPresent());
+    }
+
+    private static MqttPayload payload(String text) {
+        return new MqttPayload(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,103 @@
+package io.mysmarthome.platforms.mqtt;
+
+import io.mysmarthome.platform.message.ReceivedMessage;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PendingRequestsTest {
+
+    private static final Duration LONG = Duration.ofSeconds(10);
+
+    private final PendingRequests pending = new PendingRequests();
+
+    @Test
+    void messageCompletesTheOldestRequestWithoutCorrelation() {
+        CompletableFuture<ReceivedMessage> first = pending.register("dev/1/resp", null, null, LONG);
+        CompletableFuture<ReceivedMessage> second = pending.register("dev/1/resp", null, null, LONG);
+        ReceivedMessage message = message("on");
+
+        complete("dev/1/resp", "on", message);
+
+        assertSame(message, first.getNow(null));
+        assertFalse(second.isDone());
+    }
+
+    @Test
+    void messageCompletesTheRequestWithItsCorrelationId() {
+        CompletableFuture<ReceivedMessage> one = pending.register("dev/+/resp", "id", "1", LONG);
+        CompletableFuture<ReceivedMessage> two = pending.register("dev/+/resp", "id", "2", LONG);
+        ReceivedMessage message = message("two");
+
+        complete("dev/7/resp", "{\"id\": 2, \"state\": \"on\"}", message);
+
+        assertFalse(one.isDone());
+        assertSame(message, two.getNow(null));
+    }
+
+    @Test
+    void messageWithoutTheCorrelationIdIsIgnored() {
+        CompletableFuture<ReceivedMessage> request = pending.register("dev/1/resp", "id", "1", LONG);
+
+        complete("dev/1/resp", "not json", message("a"));
+        complete("dev/1/resp", "{\"id\": {\"nested\": 1}}", message("b"));
+        complete("dev/1/resp", "{\"other\": 1}", message("c"));
+
+        assertFalse(request.isDone());
+    }
+
+    @Test
+    void messageOfAnotherTopicIsIgnored() {
+        CompletableFuture<ReceivedMessage> request = pending.register("dev/1/resp", null, null, LONG);
+
+        complete("dev/2/resp", "on", message("on"));
+
+        assertFalse(request.isDone());
+        assertEquals("dev/1/resp", pending.findFilter("dev/1/resp"));
+        assertNull(pending.findFilter("dev/2/resp"));
+    }
+
+    @Test
+    void requestWithoutResponseTimesOutAndTheNextOneGetsTheMessage() {
+        CompletableFuture<ReceivedMessage> expired = pending.register("dev/1/resp", null, null, Duration.ofMillis(50));
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> expired.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof TimeoutException);
+
+        CompletableFuture<ReceivedMessage> next = pending.register("dev/1/resp", null, null, LONG);
+        ReceivedMessage message = message("on");
+        complete("dev/1/resp", "on", message);
+
+        assertSame(message, next.getNow(null));
+        assertTrue(pending.isEmpty());
+    }
+
+    @Test
+    void completedRequestIsForgotten() {
+        pending.register("dev/1/resp", null, null, LONG);
+
+        complete("dev/1/resp", "on", message("on"));
+
+        assertTrue(pending.isEmpty());
+    }
+
+    private void complete(String topic, String payload, ReceivedMessage message) {
+        pending.complete(topic, new MqttPayload(payload.getBytes(StandardCharsets.UTF_8)), message);
+    }
+
+    private static ReceivedMessage message(String text) {
+        return ReceivedMessage.createSimpleMessage(text);
+    }
+}
@@ -0,0 +1,179 @@
+package io.mysmarthome.platforms.mqtt;
+
+import io.mysmarthome.platform.message.ReceivedMessage;
+import io.mysmarthome.platforms.mqtt.client.SimpleMqttClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 1000 requests sent at once to 100 devices behind an embedded broker, ten to each device, as onSend does: the
+ * response is registered, then the request published. The devices answer on their listen topic with the
+ * correlation id of the request. Prints the time to get all the responses and the latency of each.
+ */
+@Tag("load")
+class RequestResponseLoadTest {
+
+    private static final int DEVICES = 100;
+    private static final int REQUESTS_PER_DEVICE = 10;
+    private static final int SENDERS = 16;
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private EmbeddedBroker broker;
+    private SimpleMqttClient plugin;
+    private SimpleMqttClient devices;
+    private final PendingRequests pendingRequests = new PendingRequests();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        broker = new EmbeddedBroker();
+
+        // answers every request with its own payload, which carries the correlation id
+        devices = new SimpleMqttClient(broker.getUrl(), 100, 2000);
+        devices.subscribe("devices/+/set");
+        devices.setListener((topic, message) -> devices.publisher()
+                .topic(topic.replace("/set", "/state"))
+                .msg(new String(message.getPayload(), StandardCharsets.UTF_8))
+                .qos(1)
+                .retained(false)
+                .publish());
+        devices.start();
+
+        plugin = new SimpleMqttClient(broker.getUrl(), 100, 2000);
+        plugin.subscribe("devices/+/state");
+        plugin.setListener((topic, message) -> {
+            MqttPayload payload = new MqttPayload(message.getPayload());
+            pendingRequests.complete(topic, payload, ReceivedMessage.builder().message(payload.toString()).build());
+        });
+        plugin.start();
+
+        awaitSubscriptions();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        plugin.close();
+        devices.close();
+        broker.close();
+    }
+
+    @Test
+    void thousandConcurrentSends() throws Exception {
+        int requests = DEVICES * REQUESTS_PER_DEVICE;
+        int threadsBefore = Thread.activeCount();
+        ExecutorService senders = Executors.newFixedThreadPool(SENDERS);
+        CountDownLatch go = new CountDownLatch(1);
+        List<CompletableFuture<Long>> responses = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+            String device = "device-" + (i % DEVICES);
+            String id = Integer.toString(i);
+            CompletableFuture<Long> latency = new CompletableFuture<>();
+            responses.add(latency);
+            senders.execute(() -> {
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                long start = System.nanoTime();
+                send(device, id)
+                        .thenAccept(response -> {
+                            // a response taken by another request of the same device would carry its id
+                            assertEquals("{\"id\":\"" + id + "\"}", response.getMessage());
+                            latency.complete(System.nanoTime() - start);
+                        })
+                        .exceptionally(e -> {
+                            latency.completeExceptionally(e);
+                            return null;
+                        });
+            });
+        }
+
+        long start = System.nanoTime();
+        go.countDown();
+        CompletableFuture.allOf(responses.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        int threadsWaiting = Thread.activeCount() - threadsBefore;
+        senders.shutdown();
+
+        long[] latencies = responses.stream().mapToLong(CompletableFuture::join).sorted().toArray();
+        System.out.printf("%d requests to %d devices from %d threads: all answered in %.3f s, %.0f requests/s%n",
+                requests, DEVICES, SENDERS, seconds, requests / seconds);
+        System.out.printf("latency: median %.1f ms, p99 %.1f ms, max %.1f ms; threads added while waiting: %d "
+                        + "(the senders)%n", latencies[latencies.length / 2] / 1e6,
+                latencies[latencies.length * 99 / 100] / 1e6, latencies[latencies.length - 1] / 1e6,
+                threadsWaiting);
+        assertTrue(pendingRequests.isEmpty());
+        assertTrue(threadsWaiting <= SENDERS);
+    }
+
+    @Test
+    void requestsNobodyAnswersTimeOut() {
+        List<CompletableFuture<ReceivedMessage>> responses = new ArrayList<>();
+        for (int i = 0; i < DEVICES; i++) {
+            responses.add(send("silent-" + i, Integer.toString(i), Duration.ofSeconds(1), "silent/" + i + "/set"));
+        }
+
+        for (CompletableFuture<ReceivedMessage> response : responses) {
+            CompletionException e = assertThrows(CompletionException.class, response::join);
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertTrue(pendingRequests.isEmpty());
+    }
+
+    private CompletableFuture<ReceivedMessage> send(String device, String id) {
+        return send(device, id, TIMEOUT, "devices/" + device + "/set");
+    }
+
+    private CompletableFuture<ReceivedMessage> send(String device, String id, Duration timeout, String actionTopic) {
+        CompletableFuture<ReceivedMessage> response = pendingRequests.register("devices/" + device + "/state", "id",
+                id, timeout);
+        plugin.publisher()
+                .topic(actionTopic)
+                .msg("{\"id\":\"" + id + "\"}")
+                .qos(1)
+                .retained(false)
+                .publish()
+                .whenComplete((r, e) -> {
+                    if (e != null) {
+                        response.completeExceptionally(e);
+                    }
+                });
+        return response;
+    }
+
+    /**
+     * The subscriptions are made once connected, without waiting for the broker to confirm them.
+     */
+    private void awaitSubscriptions() throws InterruptedException {
+        for (int attempt = 0; attempt < 50; attempt++) {
+            CompletableFuture<ReceivedMessage> response = send("ping", "ping", Duration.ofMillis(100),
+                    "devices/ping/set");
+            try {
+                response.join();
+                return;
+            } catch (CompletionException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("The subscriptions were never made");
+    }
+}
@@ -0,0 +1,104 @@
+package io.mysmarthome.platforms.mqtt;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TopicTrieTest {
+
+    private final TopicTrie<String> trie = new TopicTrie<>();
+
+    @Test
+    void matchesExactTopic() {
+        trie.put("home/kitchen/temp", "kitchen");
+        trie.put("home/kitchen", "parent");
+
+        assertEquals(List.of("kitchen"), matches("home/kitchen/temp"));
+        assertTrue(matches("home/kitchen/temp/x").isEmpty());
+        assertTrue(matches("home/garage/temp").isEmpty());
+    }
+
+    @Test
+    void singleLevelWildcardMatchesOneLevel() {
+        trie.put("home/+/temp", "any room");
+
+        assertEquals(List.of("any room"), matches("home/kitchen/temp"));
+        assertEquals(List.of("any room"), matches("home//temp"));
+        assertTrue(matches("home/kitchen/oven/temp").isEmpty());
+        assertTrue(matches("home/temp").isEmpty());
+    }
+
+    @Test
+    void multiLevelWildcardMatchesTheRestAndTheParent() {
+        trie.put("home/#", "home");
+
+        assertEquals(List.of("home"), matches("home"));
+        assertEquals(List.of("home"), matches("home/kitchen"));
+        assertEquals(List.of("home"), matches("home/kitchen/oven/temp"));
+        assertTrue(matches("garden/kitchen").isEmpty());
+    }
+
+    @Test
+    void everyMatchingFilterIsCalled() {
+        trie.put("home/kitchen/temp", "exact");
+        trie.put("home/+/temp", "single");
+        trie.put("home/#", "multi");
+        trie.put("#", "all");
+
+        List<String> found = matches("home/kitchen/temp");
+        found.sort(null);
+
+        assertEquals(List.of("all", "exact", "multi", "single"), found);
+    }
+
+    @Test
+    void reportsTheFilterThatMatched() {
+        trie.put("home/+/temp", "a");
+        trie.put("home/#", "b");
+        Map<String, String> filters = new HashMap<>();
+
+        trie.forEachMatchingFilter("home/kitchen/temp", (filter, value) -> filters.put(value, filter));
+
+        assertEquals(Map.of("a", "home/+/temp", "b", "home/#"), filters);
+    }
+
+    @Test
+    void wildcardsOfTheFirstLevelSkipSystemTopics() {
+        trie.put("#", "all");
+        trie.put("+/broker/uptime", "single");
+        trie.put("$SYS/#", "sys");
+
+        assertEquals(List.of("sys"), matches("$SYS/broker/uptime"));
+    }
+
+    @Test
+    void putReplacesAndComputeIfAbsentKeeps() {
+        assertNull(trie.put("a/b", "first"));
+        assertEquals("first", trie.put("a/b", "second"));
+        assertEquals("second", trie.computeIfAbsent("a/b", f -> "third"));
+        assertEquals("a/c", trie.computeIfAbsent("a/c", f -> f));
+        assertEquals("second", trie.get("a/b"));
+        assertNull(trie.get("a"));
+    }
+
+    @Test
+    void rejectsInvalidFilters() {
+        assertThrows(IllegalArgumentException.class, () -> trie.put("a/#/b", "x"));
+        assertThrows(IllegalArgumentException.class, () -> trie.put("a/b#", "x"));
+        assertThrows(IllegalArgumentException.class, () -> trie.put("a+/b", "x"));
+    }
+
+    private List<String> matches(String topic) {
+        List<String> found = new ArrayList<>();
+        trie.forEachMatch(topic, found::add);
+        return found;
+    }
+}
@@ -0,0 +1,109 @@
+package io.mysmarthome.platforms.mqtt.client;
+
+import io.mysmarthome.platforms.mqtt.EmbeddedBroker;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Messages per second published to an embedded broker, for QoS 0 and 1 and a few max inflight values. A second
+ * client subscribes to the topics, to tell how many the broker actually delivered.
+ */
+@Tag("load")
+class SimpleMqttClientLoadTest {
+
+    private static final int MESSAGES = 20_000;
+    private static final int QUEUE_SIZE = 1000;
+    private static final int TOPICS = 100;
+    private static final String PAYLOAD = "{\"state\":\"on\",\"brightness\":254,\"color_temp\":370}";
+
+    private EmbeddedBroker broker;
+    private SimpleMqttClient subscriber;
+    private final AtomicLong received = new AtomicLong();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        broker = new EmbeddedBroker();
+        subscriber = new SimpleMqttClient(broker.getUrl(), 10, 10);
+        subscriber.subscribe("bench/#");
+        subscriber.setListener((topic, message) -> received.incrementAndGet());
+        subscriber.start();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        subscriber.close();
+        broker.close();
+    }
+
+    @Test
+    void publishThroughput() throws Exception {
+        // warms up the jvm, until the subscription made on connection reached the broker
+        int warmups = 0;
+        while (run(1, 100, 100) < 100) {
+            assertTrue(++warmups < 5);
+        }
+        System.out.printf("%d messages of %d bytes on %d topics, outbound queue %d%n", MESSAGES, PAYLOAD.length(),
+                TOPICS, QUEUE_SIZE);
+        run(0, 100, MESSAGES);
+        for (int maxInflight : new int[]{1, 10, 100}) {
+            long delivered = run(1, maxInflight, MESSAGES);
+            assertEquals(MESSAGES, delivered);
+        }
+    }
+
+    /**
+     * Publishes as fast as the queue takes the messages, the publisher waits only when the queue is full.
+     *
+     * @return messages the subscriber received
+     */
+    private long run(int qos, int maxInflight, int messages) throws Exception {
+        SimpleMqttClient client = new SimpleMqttClient(broker.getUrl(), maxInflight, QUEUE_SIZE);
+        client.start();
+        received.set(0);
+        Semaphore queued = new Semaphore(QUEUE_SIZE);
+        AtomicLong failed = new AtomicLong();
+        CompletableFuture<?>[] results = new CompletableFuture[messages];
+
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            queued.acquire();
+            results[i] = client.publisher()
+                    .topic("bench/" + (i % TOPICS))
+                    .msg(PAYLOAD)
+                    .qos(qos)
+                    .retained(false)
+                    .publish()
+                    .whenComplete((r, e) -> {
+                        queued.release();
+                        if (e != null) {
+                            failed.incrementAndGet();
+                        }
+                    });
+        }
+        CompletableFuture.allOf(results).handle((r, e) -> null).get(60, TimeUnit.SECONDS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        // the broker may still be delivering the last ones
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(qos == 0 ? 2 : 30);
+        while (received.get() < messages && System.nanoTime() - deadline < 0) {
+            Thread.sleep(10);
+        }
+        client.close();
+
+        if (messages == MESSAGES) {
+            System.out.printf("QoS %d, max inflight %3d: %6.0f msgs/s, %d failed, %d received by the subscriber%n",
+                    qos, maxInflight, messages / seconds, failed.get(), received.get());
+        }
+        return received.get();
+    }
+}
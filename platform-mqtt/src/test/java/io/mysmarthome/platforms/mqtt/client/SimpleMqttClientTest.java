@@ -0,0 +1,71 @@
+package io.mysmarthome.platforms.mqtt.client;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs without a broker: the client is never started, so nothing leaves the outbound queue.
+ */
+class SimpleMqttClientTest {
+
+    private SimpleMqttClient client;
+
+    @BeforeEach
+    void setUp() throws MqttException {
+        client = new SimpleMqttClient("tcp://localhost:1883", 1, 2);
+    }
+
+    @AfterEach
+    void tearDown() throws MqttException {
+        client.close();
+    }
+
+    @Test
+    void publishDoesNotWaitForTheBroker() {
+        CompletableFuture<Void> result = publish("{\"state\": \"on\"}");
+
+        assertFalse(result.isDone());
+    }
+
+    @Test
+    void publishFailsRightAwayWhenTheQueueIsFull() {
+        CompletableFuture<Void> first = publish("1");
+        CompletableFuture<Void> second = publish("2");
+        CompletableFuture<Void> third = publish("3");
+
+        assertFalse(first.isDone());
+        assertFalse(second.isDone());
+        assertTrue(third.isCompletedExceptionally());
+        CompletionException e = assertThrows(CompletionException.class, third::join);
+        assertTrue(e.getCause() instanceof SimpleMqttClientException);
+    }
+
+    @Test
+    void closeFailsTheQueuedMessagesOfAClientNeverStarted() throws MqttException {
+        CompletableFuture<Void> queued = publish("1");
+
+        client.close();
+
+        CompletionException e = assertThrows(CompletionException.class, queued::join);
+        assertTrue(e.getCause() instanceof SimpleMqttClientException);
+        assertTrue(publish("2").isCompletedExceptionally());
+    }
+
+    private CompletableFuture<Void> publish(String msg) {
+        return client.publisher()
+                .topic("home/light/set")
+                .msg(msg)
+                .qos(1)
+                .retained(false)
+                .publish();
+    }
+}